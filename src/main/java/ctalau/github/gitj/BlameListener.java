@@ -0,0 +1,17 @@
+package ctalau.github.gitj;
+
+/**
+ * Receives the line ranges of a file, with the commits that last changed 
+ * them, as they are found.
+ *
+ * @author ctalau
+ */
+public interface BlameListener {
+  /**
+   * Called for every line range of the file. The ranges are not reported 
+   * in the order of the lines.
+   *
+   * @param range The range.
+   */
+  void rangeBlamed(BlameRange range);
+}
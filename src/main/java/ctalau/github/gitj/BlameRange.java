@@ -0,0 +1,92 @@
+package ctalau.github.gitj;
+
+/**
+ * A range of lines of a file that were last changed by the same commit.
+ *
+ * @author ctalau
+ */
+public class BlameRange {
+  /**
+   * The SHA of the commit that last changed the lines.
+   */
+  private final String commitSha;
+
+  /**
+   * The path of the file in that commit.
+   */
+  private final String originalPath;
+
+  /**
+   * The first line of the range in that commit, starting from 1.
+   */
+  private final int originalStartLine;
+
+  /**
+   * The first line of the range in the blamed file, starting from 1.
+   */
+  private final int startLine;
+
+  /**
+   * The number of lines in the range.
+   */
+  private final int lineCount;
+
+  /**
+   * Constructor.
+   *
+   * @param commitSha The SHA of the commit that last changed the lines.
+   * @param originalPath The path of the file in that commit.
+   * @param originalStartLine The first line of the range in that commit.
+   * @param startLine The first line of the range in the blamed file.
+   * @param lineCount The number of lines in the range.
+   */
+  public BlameRange(String commitSha, String originalPath, int originalStartLine, 
+      int startLine, int lineCount) {
+    this.commitSha = commitSha;
+    this.originalPath = originalPath;
+    this.originalStartLine = originalStartLine;
+    this.startLine = startLine;
+    this.lineCount = lineCount;
+  }
+
+  /**
+   * @return The SHA of the commit that last changed the lines.
+   */
+  public String getCommitSha() {
+    return commitSha;
+  }
+
+  /**
+   * @return The path of the file in the commit that last changed the lines.
+   */
+  public String getOriginalPath() {
+    return originalPath;
+  }
+
+  /**
+   * @return The first line of the range in the commit that last changed the 
+   * lines, starting from 1.
+   */
+  public int getOriginalStartLine() {
+    return originalStartLine;
+  }
+
+  /**
+   * @return The first line of the range in the blamed file, starting from 1.
+   */
+  public int getStartLine() {
+    return startLine;
+  }
+
+  /**
+   * @return The number of lines in the range.
+   */
+  public int getLineCount() {
+    return lineCount;
+  }
+
+  @Override
+  public String toString() {
+    return commitSha + " " + startLine + "+" + lineCount;
+  }
+}
@@ -0,0 +1,66 @@
+package ctalau.github.gitj;
+
+/**
+ * Notification that a branch was created, moved or deleted.
+ *
+ * @author ctalau
+ */
+public class BranchChangeEvent {
+  /**
+   * The name of the branch.
+   */
+  private final String branch;
+
+  /**
+   * The SHA of the previous commit on the branch, or <code>null</code> if the
+   * branch was created.
+   */
+  private final String oldSha;
+
+  /**
+   * The SHA of the new commit on the branch, or <code>null</code> if the
+   * branch was deleted.
+   */
+  private final String newSha;
+
+  /**
+   * Constructor.
+   *
+   * @param branch The name of the branch.
+   * @param oldSha The previous commit SHA, or <code>null</code>.
+   * @param newSha The new commit SHA, or <code>null</code>.
+   */
+  public BranchChangeEvent(String branch, String oldSha, String newSha) {
+    this.branch = branch;
+    this.oldSha = oldSha;
+    this.newSha = newSha;
+  }
+
+  /**
+   * @return The name of the branch.
+   */
+  public String getBranch() {
+    return branch;
+  }
+
+  /**
+   * @return The SHA of the previous commit on the branch, or <code>null</code>
+   * if the branch was created.
+   */
+  public String getOldSha() {
+    return oldSha;
+  }
+
+  /**
+   * @return The SHA of the new commit on the branch, or <code>null</code>
+   * if the branch was deleted.
+   */
+  public String getNewSha() {
+    return newSha;
+  }
+
+  @Override
+  public String toString() {
+    return branch + ": " + oldSha + " -> " + newSha;
+  }
+}
@@ -0,0 +1,18 @@
+package ctalau.github.gitj;
+
+/**
+ * Receives notifications about branch changes.
+ *
+ * @author ctalau
+ */
+public interface BranchListener {
+  /**
+   * Called after a branch was created, moved or deleted.
+   *
+   * Notifications are delivered synchronously, so implementations should
+   * return quickly and hand any expensive work to another thread.
+   *
+   * @param event The change.
+   */
+  void branchChanged(BranchChangeEvent event);
+}
@@ -0,0 +1,482 @@
+package ctalau.github.gitj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Replicates the branch moves of a repository to mirror repositories.
+ *
+ * Branch moves are observed through a {@link BranchListener} and pushed
+ * asynchronously. While a push is in progress, further moves of the same
+ * branch are coalesced, so that only the latest commit of every branch is
+ * pushed. The branches pending for a mirror are pushed together, with a
+ * single atomic push.
+ *
+ * When a push fails, its branches are retried one by one, so that a branch
+ * rejected by a mirror does not hold back the others. A branch is retried
+ * with an exponential backoff, and its update is abandoned after
+ * {@link #MAX_PUSH_ATTEMPTS} failed pushes. The last failure is available
+ * from {@link #getLastFailure()}.
+ *
+ * @author ctalau
+ */
+public class BranchReplicator implements Closeable {
+  /**
+   * The delay before retrying a failed push the first time. It doubles with
+   * every failure.
+   */
+  private static final long RETRY_DELAY_MILLIS = 1000;
+
+  /**
+   * The maximum delay before retrying a failed push.
+   */
+  private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+  /**
+   * The number of failed pushes after which a branch update is abandoned.
+   */
+  static final int MAX_PUSH_ATTEMPTS = 5;
+
+  /**
+   * The logger.
+   */
+  private static final Logger logger = Logger.getLogger(BranchReplicator.class.getName());
+
+  /**
+   * The prefix of the branch refs.
+   */
+  private static final String HEADS_PREFIX = "refs/heads/";
+
+  /**
+   * A branch update waiting to be pushed.
+   */
+  private static class PendingUpdate {
+    /**
+     * The commit to push, or <code>null</code> to delete the branch.
+     */
+    final String sha;
+
+    /**
+     * The time of the oldest update of this branch not yet pushed.
+     */
+    final long sinceNanos;
+
+    /**
+     * The number of failed pushes of this commit.
+     */
+    final int failedAttempts;
+
+    /**
+     * The time before which the update should not be pushed again.
+     */
+    final long retryNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param sha The commit to push.
+     * @param sinceNanos The time of the oldest update not yet pushed.
+     * @param failedAttempts The number of failed pushes of this commit.
+     * @param retryNanos The time before which the update should not be
+     * pushed again.
+     */
+    PendingUpdate(String sha, long sinceNanos, int failedAttempts, long retryNanos) {
+      this.sha = sha;
+      this.sinceNanos = sinceNanos;
+      this.failedAttempts = failedAttempts;
+      this.retryNanos = retryNanos;
+    }
+  }
+
+  /**
+   * The repository whose branches are replicated.
+   */
+  private final GitRepository repository;
+
+  /**
+   * The git command executor.
+   */
+  private final GitCommandExecutor executor;
+
+  /**
+   * The URLs or paths of the mirror repositories.
+   */
+  private final List<String> mirrors;
+
+  /**
+   * The updates waiting to be pushed, by mirror and branch.
+   */
+  private final Map<String, Map<String, PendingUpdate>> pending = Maps.newHashMap();
+
+  /**
+   * The listener which observes the branch moves.
+   */
+  private final BranchListener listener = new BranchListener() {
+    @Override
+    public void branchChanged(BranchChangeEvent event) {
+      enqueue(event.getBranch(), event.getNewSha());
+    }
+  };
+
+  /**
+   * The thread which pushes the updates.
+   */
+  private final Thread pushThread;
+
+  /**
+   * The number of successful pushes.
+   */
+  private final AtomicLong pushCount = new AtomicLong();
+
+  /**
+   * The number of failed pushes.
+   */
+  private final AtomicLong failedPushCount = new AtomicLong();
+
+  /**
+   * The number of branch updates pushed.
+   */
+  private final AtomicLong replicatedUpdateCount = new AtomicLong();
+
+  /**
+   * The number of branch updates abandoned after too many failed pushes.
+   */
+  private final AtomicLong abandonedUpdateCount = new AtomicLong();
+
+  /**
+   * The error of the last failed push, or <code>null</code>.
+   */
+  private volatile IOException lastFailure;
+
+  /**
+   * The lag of the last successful push, in milliseconds.
+   */
+  private volatile long lastPushLagMillis;
+
+  /**
+   * The number of pushes in progress. Guarded by the lock of {@link #pending}.
+   */
+  private int pushesInProgress;
+
+  /**
+   * Whether the replicator was closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Constructor.
+   *
+   * @param repository The repository whose branches are replicated.
+   * @param executor The git command executor.
+   * @param mirrors The URLs or paths of the mirror repositories.
+   */
+  BranchReplicator(GitRepository repository, GitCommandExecutor executor, List<String> mirrors) {
+    this.repository = repository;
+    this.executor = executor;
+    this.mirrors = ImmutableList.copyOf(mirrors);
+    for (String mirror : mirrors) {
+      pending.put(mirror, Maps.<String, PendingUpdate>newLinkedHashMap());
+    }
+    this.pushThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        pushLoop();
+      }
+    }, "gitj-replicator");
+    this.pushThread.setDaemon(true);
+    this.pushThread.start();
+    repository.addBranchListener(listener);
+  }
+
+  /**
+   * Schedules a branch to be pushed to all the mirrors.
+   *
+   * @param branch The name of the branch.
+   * @param sha The commit to push, or <code>null</code> to delete the branch.
+   */
+  public void enqueue(String branch, String sha) {
+    long now = System.nanoTime();
+    synchronized (pending) {
+      for (Map<String, PendingUpdate> mirrorPending : pending.values()) {
+        PendingUpdate previous = mirrorPending.get(branch);
+        // Keep the time of the oldest update to measure the lag.
+        long since = previous != null ? previous.sinceNanos : now;
+        mirrorPending.put(branch, new PendingUpdate(sha, since, 0, now));
+      }
+      pending.notifyAll();
+    }
+  }
+
+  /**
+   * Pushes the pending updates until the replicator is closed.
+   */
+  private void pushLoop() {
+    try {
+      while (!closed) {
+        for (String mirror : mirrors) {
+          Map<String, PendingUpdate> updates = Maps.newLinkedHashMap();
+          Map<String, PendingUpdate> retriedUpdates = Maps.newLinkedHashMap();
+          synchronized (pending) {
+            long now = System.nanoTime();
+            Iterator<Map.Entry<String, PendingUpdate>> iterator =
+                pending.get(mirror).entrySet().iterator();
+            while (iterator.hasNext()) {
+              Map.Entry<String, PendingUpdate> update = iterator.next();
+              if (update.getValue().failedAttempts == 0) {
+                updates.put(update.getKey(), update.getValue());
+                iterator.remove();
+              } else if (update.getValue().retryNanos - now <= 0) {
+                retriedUpdates.put(update.getKey(), update.getValue());
+                iterator.remove();
+              }
+            }
+            pushesInProgress++;
+          }
+          Map<String, PendingUpdate> failedUpdates = Maps.newLinkedHashMap();
+          try {
+            if (!updates.isEmpty() && !push(mirror, updates)) {
+              if (updates.size() == 1) {
+                failedUpdates.putAll(updates);
+              } else {
+                // Find out which branches were rejected.
+                retriedUpdates.putAll(updates);
+              }
+            }
+            for (Map.Entry<String, PendingUpdate> update : retriedUpdates.entrySet()) {
+              Map<String, PendingUpdate> singleUpdate =
+                  ImmutableMap.of(update.getKey(), update.getValue());
+              if (!push(mirror, singleUpdate)) {
+                failedUpdates.putAll(singleUpdate);
+              }
+            }
+          } finally {
+            synchronized (pending) {
+              requeue(mirror, failedUpdates);
+              pushesInProgress--;
+              pending.notifyAll();
+            }
+          }
+        }
+        synchronized (pending) {
+          long waitNanos;
+          while (!closed && (waitNanos = getWaitNanos()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(pending, waitNanos);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      // The replicator was closed.
+    }
+  }
+
+  /**
+   * Returns the time until the next pending update should be pushed.
+   *
+   * Must be called with the lock held.
+   *
+   * @return The time in nanoseconds, 0 if an update should be pushed now or
+   * {@link Long#MAX_VALUE} if there are no pending updates.
+   */
+  private long getWaitNanos() {
+    long now = System.nanoTime();
+    long waitNanos = Long.MAX_VALUE;
+    for (Map<String, PendingUpdate> mirrorPending : pending.values()) {
+      for (PendingUpdate update : mirrorPending.values()) {
+        waitNanos = Math.min(waitNanos, Math.max(0, update.retryNanos - now));
+      }
+    }
+    return waitNanos;
+  }
+
+  /**
+   * Pushes a set of branch updates to a mirror.
+   *
+   * @param mirror The mirror.
+   * @param updates The updates by branch.
+   *
+   * @return <code>true</code> if the push succeeded.
+   *
+   * @throws InterruptedException
+   */
+  private boolean push(String mirror, Map<String, PendingUpdate> updates) throws InterruptedException {
+    List<String> args = Lists.newArrayList("--atomic", "--quiet", mirror);
+    long oldestNanos = Long.MAX_VALUE;
+    for (Map.Entry<String, PendingUpdate> update : updates.entrySet()) {
+      String sha = update.getValue().sha;
+      String ref = HEADS_PREFIX + update.getKey();
+      // Mirrors follow the source even when the history is rewritten.
+      args.add(sha == null ? ":" + ref : "+" + sha + ":" + ref);
+      oldestNanos = Math.min(oldestNanos, update.getValue().sinceNanos);
+    }
+    try {
+      executor.runGitCommand("push", args.toArray(new String[args.size()]));
+    } catch (IOException e) {
+      failedPushCount.incrementAndGet();
+      lastFailure = e;
+      return false;
+    }
+    pushCount.incrementAndGet();
+    replicatedUpdateCount.addAndGet(updates.size());
+    lastPushLagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestNanos);
+    return true;
+  }
+
+  /**
+   * Puts back the updates of a failed push to be retried later, unless newer
+   * updates arrived or they failed too many times.
+   *
+   * Must be called with the lock held.
+   *
+   * @param mirror The mirror.
+   * @param updates The updates which failed.
+   */
+  private void requeue(String mirror, Map<String, PendingUpdate> updates) {
+    Map<String, PendingUpdate> mirrorPending = pending.get(mirror);
+    long now = System.nanoTime();
+    for (Map.Entry<String, PendingUpdate> update : updates.entrySet()) {
+      String branch = update.getKey();
+      PendingUpdate failed = update.getValue();
+      PendingUpdate newer = mirrorPending.get(branch);
+      if (newer != null) {
+        // The newer commit is pushed instead, with a fresh retry budget.
+        mirrorPending.put(branch, new PendingUpdate(newer.sha, failed.sinceNanos, 0, now));
+      } else if (failed.failedAttempts + 1 >= MAX_PUSH_ATTEMPTS) {
+        abandonedUpdateCount.incrementAndGet();
+        logger.log(Level.WARNING, "Abandoned the replication of " + branch + " to " + mirror
+            + " after " + MAX_PUSH_ATTEMPTS + " failed pushes", lastFailure);
+      } else {
+        long delayMillis = Math.min(MAX_RETRY_DELAY_MILLIS,
+            RETRY_DELAY_MILLIS << failed.failedAttempts);
+        mirrorPending.put(branch, new PendingUpdate(failed.sha, failed.sinceNanos,
+            failed.failedAttempts + 1, now + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+      }
+    }
+  }
+
+  /**
+   * @return <code>true</code> if there are updates waiting to be pushed.
+   * Must be called with the lock held.
+   */
+  private boolean hasPendingUpdates() {
+    for (Map<String, PendingUpdate> mirrorPending : pending.values()) {
+      if (!mirrorPending.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the current replication lag: the age of the oldest branch update
+   * which was not yet pushed to all the mirrors.
+   *
+   * Updates being pushed are not counted.
+   *
+   * @return The lag in milliseconds, 0 if all the updates were pushed.
+   */
+  public long getReplicationLagMillis() {
+    long now = System.nanoTime();
+    long lag = 0;
+    synchronized (pending) {
+      for (Map<String, PendingUpdate> mirrorPending : pending.values()) {
+        for (PendingUpdate update : mirrorPending.values()) {
+          lag = Math.max(lag, TimeUnit.NANOSECONDS.toMillis(now - update.sinceNanos));
+        }
+      }
+    }
+    return lag;
+  }
+
+  /**
+   * @return The time between the oldest branch update included in the last
+   * successful push and the end of that push, in milliseconds.
+   */
+  public long getLastPushLagMillis() {
+    return lastPushLagMillis;
+  }
+
+  /**
+   * @return The number of successful pushes.
+   */
+  public long getPushCount() {
+    return pushCount.get();
+  }
+
+  /**
+   * @return The number of failed pushes.
+   */
+  public long getFailedPushCount() {
+    return failedPushCount.get();
+  }
+
+  /**
+   * @return The number of branch updates abandoned after
+   * {@link #MAX_PUSH_ATTEMPTS} failed pushes.
+   */
+  public long getAbandonedUpdateCount() {
+    return abandonedUpdateCount.get();
+  }
+
+  /**
+   * @return The error of the last failed push, or <code>null</code> if no
+   * push failed.
+   */
+  public IOException getLastFailure() {
+    return lastFailure;
+  }
+
+  /**
+   * @return The number of branch updates pushed, after coalescing.
+   */
+  public long getReplicatedUpdateCount() {
+    return replicatedUpdateCount.get();
+  }
+
+  /**
+   * Waits until all the branch updates enqueued so far are pushed or
+   * abandoned.
+   *
+   * @param timeoutMillis The maximum time to wait, in milliseconds.
+   *
+   * @return <code>true</code> if all the updates were pushed, and none was
+   * abandoned while waiting.
+   *
+   * @throws InterruptedException
+   */
+  public boolean awaitReplication(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long abandonedCount = abandonedUpdateCount.get();
+    synchronized (pending) {
+      while (hasPendingUpdates() || pushesInProgress > 0) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        pending.wait(remaining);
+      }
+    }
+    return abandonedUpdateCount.get() == abandonedCount;
+  }
+
+  /**
+   * Stops observing the branch moves and pushing updates.
+   */
+  @Override
+  public void close() {
+    repository.removeBranchListener(listener);
+    closed = true;
+    pushThread.interrupt();
+  }
+}
@@ -0,0 +1,344 @@
+package ctalau.github.gitj;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Watches the branches of a repository and notifies a listener when they change.
+ *
+ * Branch moves performed by the {@link GitRepository} in this process are
+ * delivered immediately. Changes made by other processes are detected from
+ * file system events on the ref files, so nothing runs while the branches
+ * do not change. Bursts of events are coalesced and the refs are then read
+ * with a single git process.
+ *
+ * The listener is never called while a lock of this object is held, so it
+ * may be called concurrently for changes detected on different threads.
+ * Failures to read the refs are logged and the refs are read again later.
+ *
+ * @author ctalau
+ */
+public class BranchWatcher implements Closeable, BranchListener {
+  /**
+   * The time to wait for more file system events before reading the refs.
+   */
+  private static final long COALESCE_MILLIS = 2;
+
+  /**
+   * The time to wait before reading the refs again after a failure.
+   */
+  private static final long RETRY_MILLIS = 1000;
+
+  /**
+   * The logger.
+   */
+  private static final Logger logger = Logger.getLogger(BranchWatcher.class.getName());
+
+  /**
+   * The prefix of the branch refs.
+   */
+  private static final String HEADS_PREFIX = "refs/heads/";
+
+  /**
+   * The name of the file that holds the packed refs.
+   */
+  private static final String PACKED_REFS = "packed-refs";
+
+  /**
+   * The repository.
+   */
+  private final GitRepository repository;
+
+  /**
+   * The git command executor.
+   */
+  private final GitCommandExecutor executor;
+
+  /**
+   * The listener to notify.
+   */
+  private final BranchListener listener;
+
+  /**
+   * The file system watch service.
+   */
+  private final WatchService watchService;
+
+  /**
+   * The directory that contains the branch refs.
+   */
+  private final Path headsDir;
+
+  /**
+   * The last known commit of each branch.
+   */
+  private final Map<String, String> branches = Maps.newHashMap();
+
+  /**
+   * The thread that waits for file system events.
+   */
+  private final Thread watchThread;
+
+  /**
+   * Constructor.
+   *
+   * @param repository The repository.
+   * @param executor The git command executor.
+   * @param listener The listener to notify.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  BranchWatcher(GitRepository repository, GitCommandExecutor executor, BranchListener listener)
+      throws IOException, InterruptedException {
+    this.repository = repository;
+    this.executor = executor;
+    this.listener = listener;
+
+    Path gitDir = new File(executor.runGitCommand("rev-parse", "--absolute-git-dir").trim()).toPath();
+    this.headsDir = gitDir.resolve(HEADS_PREFIX);
+    this.watchService = FileSystems.getDefault().newWatchService();
+    // The packed-refs file is in the git dir.
+    gitDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    registerRecursively(headsDir);
+
+    branches.putAll(readBranches());
+    repository.addBranchListener(this);
+
+    this.watchThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        watch();
+      }
+    }, "gitj-branch-watcher");
+    this.watchThread.setDaemon(true);
+    this.watchThread.start();
+  }
+
+  /**
+   * Registers a directory and its subdirectories for file system events.
+   *
+   * @param dir The directory.
+   *
+   * @throws IOException
+   */
+  private void registerRecursively(Path dir) throws IOException {
+    if (!Files.isDirectory(dir)) {
+      return;
+    }
+    try {
+      dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    } catch (NoSuchFileException e) {
+      // Removed concurrently, for example when git deletes an empty folder.
+      return;
+    }
+    File[] children = dir.toFile().listFiles();
+    if (children == null) {
+      // Removed concurrently.
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        registerRecursively(child.toPath());
+      }
+    }
+  }
+
+  /**
+   * Waits for file system events and checks the branches when they arrive.
+   *
+   * Failures are logged and, after a delay, the ref directories are
+   * registered again and the refs are read again, so that the watch goes
+   * on once the failure is over.
+   */
+  private void watch() {
+    boolean failed = false;
+    try {
+      while (true) {
+        try {
+          if (failed) {
+            Thread.sleep(RETRY_MILLIS);
+            registerRecursively(headsDir);
+            refresh();
+            failed = false;
+          } else if (waitForRefChanges()) {
+            refresh();
+          }
+        } catch (ClosedWatchServiceException e) {
+          // The watcher was closed.
+          return;
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to check the branches of " + headsDir, e);
+          failed = true;
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Failed to check the branches of " + headsDir, e);
+          failed = true;
+        }
+      }
+    } catch (InterruptedException e) {
+      // The watcher was closed.
+    }
+  }
+
+  /**
+   * Waits for a burst of file system events.
+   *
+   * @return <code>true</code> if the events may concern the branch refs.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private boolean waitForRefChanges() throws IOException, InterruptedException {
+    WatchKey key = watchService.take();
+    boolean refsChanged = false;
+    // Coalesce the events of a burst of ref updates.
+    do {
+      Path dir = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          refsChanged = true;
+          continue;
+        }
+        Path child = dir.resolve((Path) event.context());
+        if (child.startsWith(headsDir)) {
+          refsChanged = true;
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            registerRecursively(child);
+          }
+        } else if (child.getFileName().toString().equals(PACKED_REFS)) {
+          refsChanged = true;
+        }
+      }
+      key.reset();
+    } while ((key = watchService.poll(COALESCE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+    return refsChanged;
+  }
+
+  /**
+   * Reads the branches and notifies the listener about the ones that changed.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void refresh() throws IOException, InterruptedException {
+    List<BranchChangeEvent> events = Lists.newArrayList();
+    synchronized (branches) {
+      // Read the refs while holding the lock, so that the result is not
+      // older than a concurrent in-process notification.
+      Map<String, String> newBranches = readBranches();
+      for (String branch : Sets.union(branches.keySet(), newBranches.keySet()).immutableCopy()) {
+        String oldSha = branches.get(branch);
+        String newSha = newBranches.get(branch);
+        if (!Objects.equal(oldSha, newSha)) {
+          events.add(update(new BranchChangeEvent(branch, oldSha, newSha)));
+        }
+      }
+    }
+    notifyListener(events);
+  }
+
+  /**
+   * Reads the commits of all the branches with a single git process.
+   *
+   * @return The commit SHA of every branch.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private Map<String, String> readBranches() throws IOException, InterruptedException {
+    String output = executor.runGitCommand("for-each-ref",
+        "--format=%(objectname) %(refname)", HEADS_PREFIX);
+    Map<String, String> refs = Maps.newHashMap();
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(output)) {
+      int separatorIndex = line.indexOf(' ');
+      refs.put(line.substring(separatorIndex + 1 + HEADS_PREFIX.length()),
+          line.substring(0, separatorIndex));
+    }
+    return refs;
+  }
+
+  /**
+   * Called for the branches moved in this process.
+   *
+   * @param event The change.
+   */
+  @Override
+  public void branchChanged(BranchChangeEvent event) {
+    BranchChangeEvent change = null;
+    synchronized (branches) {
+      String knownSha = branches.get(event.getBranch());
+      if (!Objects.equal(knownSha, event.getNewSha())) {
+        change = update(new BranchChangeEvent(event.getBranch(), knownSha, event.getNewSha()));
+      }
+    }
+    if (change != null) {
+      notifyListener(ImmutableList.of(change));
+    }
+  }
+
+  /**
+   * Records a branch change. Called with the lock on the branches held.
+   *
+   * @param event The change.
+   *
+   * @return The change.
+   */
+  private BranchChangeEvent update(BranchChangeEvent event) {
+    if (event.getNewSha() == null) {
+      branches.remove(event.getBranch());
+    } else {
+      branches.put(event.getBranch(), event.getNewSha());
+    }
+    return event;
+  }
+
+  /**
+   * Notifies the listener about some changes. A failure of the listener is
+   * logged and does not prevent the other notifications.
+   *
+   * @param events The changes.
+   */
+  private void notifyListener(List<BranchChangeEvent> events) {
+    for (BranchChangeEvent event : events) {
+      try {
+        listener.branchChanged(event);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Branch listener failed for " + event.getBranch(), e);
+      }
+    }
+  }
+
+  /**
+   * Stops watching the branches.
+   */
+  @Override
+  public void close() throws IOException {
+    repository.removeBranchListener(this);
+    watchService.close();
+    watchThread.interrupt();
+  }
+}
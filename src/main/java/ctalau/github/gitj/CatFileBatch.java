@@ -0,0 +1,210 @@
+package ctalau.github.gitj;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A <code>git cat-file --batch</code> process which reads many objects over
+ * the same pipe.
+ *
+ * Objects can be read one at a time, or pipelined: all the requests are
+ * written from a background thread while the responses are consumed, so that
+ * reading N objects costs a single process and no round trips.
+ *
+ * This class is not thread-safe.
+ *
+ * @author ctalau
+ */
+class CatFileBatch implements Closeable {
+  /**
+   * Receives the objects read in a pipelined batch.
+   */
+  interface ObjectHandler {
+    /**
+     * Called for every requested object, in the order of the requests.
+     *
+     * @param sha The requested SHA.
+     * @param size The size of the object, or -1 if the object is missing.
+     * @param content The content of the object. Exactly <code>size</code> bytes
+     * should be consumed from it. If less are read, the rest is skipped.
+     *
+     * @throws IOException
+     */
+    void objectRead(String sha, long size, InputStream content) throws IOException;
+  }
+
+  /**
+   * The cat-file process.
+   */
+  private final GitProcess process;
+
+  /**
+   * The buffered requests stream.
+   */
+  private final OutputStream requests;
+
+  /**
+   * The buffered responses stream.
+   */
+  private final InputStream responses;
+
+  /**
+   * Constructor.
+   *
+   * @param executor The git command executor.
+   *
+   * @throws IOException
+   */
+  CatFileBatch(GitCommandExecutor executor) throws IOException {
+    this.process = executor.startGitCommand("cat-file", "--batch");
+    this.requests = new BufferedOutputStream(process.getOutputStream());
+    this.responses = new BufferedInputStream(process.getInputStream());
+  }
+
+  /**
+   * Reads an object.
+   *
+   * @param object The SHA of the object or any other object name, like
+   * "commit:path".
+   *
+   * @return The content of the object or <code>null</code> if it is missing.
+   *
+   * @throws IOException
+   */
+  byte[] read(String object) throws IOException {
+    writeRequest(object);
+    requests.flush();
+    final byte[][] result = new byte[1][];
+    readResponse(object, new ObjectHandler() {
+      @Override
+      public void objectRead(String sha, long size, InputStream content) throws IOException {
+        if (size >= 0) {
+          result[0] = new byte[(int) size];
+          ByteStreams.readFully(content, result[0]);
+        }
+      }
+    });
+    return result[0];
+  }
+
+  /**
+   * Reads many objects in a single pipelined exchange.
+   *
+   * If the handler throws, the process is stopped and this object can no 
+   * longer be used.
+   *
+   * @param objects The SHAs of the objects.
+   * @param handler The handler that receives the objects.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void readAll(final List<String> objects, ObjectHandler handler)
+      throws IOException, InterruptedException {
+    final IOException[] writeFailure = new IOException[1];
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (String object : objects) {
+            writeRequest(object);
+          }
+          requests.flush();
+        } catch (IOException e) {
+          writeFailure[0] = e;
+        }
+      }
+    }, "gitj-cat-file-writer");
+    writer.setDaemon(true);
+    writer.start();
+    boolean success = false;
+    try {
+      for (String object : objects) {
+        readResponse(object, handler);
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        // The writer may be blocked on the full input pipe, which only fails
+        // once the process is killed.
+        close();
+      }
+      writer.join();
+    }
+    if (writeFailure[0] != null) {
+      throw writeFailure[0];
+    }
+  }
+
+  /**
+   * Writes the request for an object.
+   *
+   * @param object The object name.
+   *
+   * @throws IOException
+   */
+  private void writeRequest(String object) throws IOException {
+    requests.write((object + "\n").getBytes(Charsets.UTF_8));
+  }
+
+  /**
+   * Reads the response for an object and passes it to the handler.
+   *
+   * @param object The requested object name.
+   * @param handler The object handler.
+   *
+   * @throws IOException
+   */
+  private void readResponse(String object, ObjectHandler handler) throws IOException {
+    String header = readLine();
+    if (header.endsWith(" missing") || header.endsWith(" ambiguous")) {
+      handler.objectRead(object, -1, null);
+      return;
+    }
+    long size = Long.parseLong(header.substring(header.lastIndexOf(' ') + 1));
+    InputStream content = ByteStreams.limit(responses, size);
+    handler.objectRead(object, size, content);
+    ByteStreams.copy(content, ByteStreams.nullOutputStream());
+    // Each object is followed by a new line.
+    if (responses.read() != '\n') {
+      throw new IOException("Unexpected cat-file output for " + object);
+    }
+  }
+
+  /**
+   * Reads a header line of the output.
+   *
+   * @return The line without the line terminator.
+   *
+   * @throws IOException
+   */
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = responses.read()) != '\n') {
+      if (b == -1) {
+        throw new EOFException(process.getErrorOutput());
+      }
+      line.write(b);
+    }
+    return new String(line.toByteArray(), Charsets.UTF_8);
+  }
+
+  /**
+   * Stops the cat-file process.
+   */
+  @Override
+  public void close() {
+    process.close();
+  }
+}
@@ -0,0 +1,577 @@
+package ctalau.github.gitj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import ctalau.github.gitj.GitCommandExecutor.ProcessExitException;
+
+/**
+ * Cache of the parsed commit objects and of the parent relation between commits.
+ *
+ * Commit objects are immutable, so every commit is read from git at most once
+ * while it stays in the cache. The parent index is much more compact than the
+ * commits themselves, so it holds many more entries and it is filled in batches
+ * when walking the history. It also holds the commit times, by which the
+ * history is walked newest first, so that walks can stop early.
+ *
+ * @author ctalau
+ */
+class CommitGraph {
+  /**
+   * The maximum number of parsed commits kept in memory.
+   */
+  private static final int MAX_CACHED_COMMITS = 10000;
+
+  /**
+   * The maximum number of commits in the parent index.
+   */
+  private static final int MAX_INDEXED_PARENTS = 200000;
+
+  /**
+   * The number of commits loaded in the parent index at once.
+   */
+  private static final int PARENTS_BATCH_SIZE = 1000;
+
+  /**
+   * The maximum number of commits visited in memory when checking the
+   * ancestry relation, before asking git.
+   */
+  private static final int MAX_WALKED_COMMITS = 10000;
+
+  /**
+   * The clock skew between committers tolerated when checking the ancestry
+   * relation, in seconds.
+   */
+  private static final long MAX_CLOCK_SKEW_SECONDS = 24 * 60 * 60;
+
+  /**
+   * The number of commits older than the potential ancestor visited before
+   * concluding that it is not reachable, in case their commit times are
+   * skewed, like git does when walking the history by date.
+   */
+  private static final int OLD_COMMITS_SLOP = 5;
+
+  /**
+   * The pattern of a full commit SHA.
+   */
+  private static final Pattern FULL_SHA = Pattern.compile("[0-9a-f]{40}");
+
+  /**
+   * The pattern of an abbreviated commit SHA.
+   */
+  private static final Pattern ABBREVIATED_SHA = Pattern.compile("[0-9a-f]{4,39}");
+
+  /**
+   * The flag of the commits reachable from the first commit of a merge base walk.
+   */
+  private static final int REACHABLE_FROM_FIRST = 1;
+
+  /**
+   * The flag of the commits reachable from the second commit of a merge base walk.
+   */
+  private static final int REACHABLE_FROM_SECOND = 2;
+
+  /**
+   * The flag of the commits reachable from a common ancestor in a merge base walk.
+   */
+  private static final int STALE = 4;
+
+  /**
+   * An entry of the parent index.
+   */
+  private static class CommitNode {
+    /**
+     * The SHAs of the parents.
+     */
+    private final List<String> parents;
+
+    /**
+     * The commit time, in seconds since the epoch.
+     */
+    private final long commitTime;
+
+    /**
+     * Constructor.
+     *
+     * @param parents The SHAs of the parents.
+     * @param commitTime The commit time, in seconds since the epoch.
+     */
+    CommitNode(List<String> parents, long commitTime) {
+      this.parents = parents;
+      this.commitTime = commitTime;
+    }
+  }
+
+  /**
+   * A commit in the queue of a walk which visits the newest commits first.
+   */
+  private static class QueuedCommit implements Comparable<QueuedCommit> {
+    /**
+     * The SHA of the commit.
+     */
+    private final String sha;
+
+    /**
+     * The commit time, in seconds since the epoch.
+     */
+    private final long commitTime;
+
+    /**
+     * Constructor.
+     *
+     * @param sha The SHA of the commit.
+     * @param commitTime The commit time, in seconds since the epoch.
+     */
+    QueuedCommit(String sha, long commitTime) {
+      this.sha = sha;
+      this.commitTime = commitTime;
+    }
+
+    @Override
+    public int compareTo(QueuedCommit other) {
+      return Long.compare(other.commitTime, commitTime);
+    }
+  }
+
+  /**
+   * The git command executor.
+   */
+  private final GitCommandExecutor executor;
+
+  /**
+   * The parsed commits, by SHA.
+   */
+  private final Cache<String, GitCommit> commits = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_COMMITS)
+      .build();
+
+  /**
+   * The parents and the times of the commits, by SHA.
+   */
+  private final Cache<String, CommitNode> nodes = CacheBuilder.newBuilder()
+      .maximumSize(MAX_INDEXED_PARENTS)
+      .build();
+
+  /**
+   * The full SHAs of the commits, by abbreviated SHA. Branch names are not
+   * cached, since they move.
+   */
+  private final Cache<String, String> resolvedShas = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_COMMITS)
+      .build();
+
+  /**
+   * Constructor.
+   *
+   * @param executor The git command executor.
+   */
+  CommitGraph(GitCommandExecutor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Returns a parsed commit.
+   *
+   * @param commitSha The SHA of the commit.
+   *
+   * @return The commit.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  GitCommit getCommit(String commitSha) throws IOException, InterruptedException {
+    final String sha = resolve(commitSha);
+    try {
+      return commits.get(sha, new Callable<GitCommit>() {
+        @Override
+        public GitCommit call() throws Exception {
+          String content = executor.runGitCommand("cat-file", "commit", sha);
+          GitCommit commit = GitCommit.parse(sha, content);
+          nodes.put(sha, new CommitNode(commit.getParents(), commit.getCommitTime()));
+          return commit;
+        }
+      });
+    } catch (ExecutionException e) {
+      throw propagate(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Resolves a revision to the full SHA of a commit.
+   *
+   * @param revision The revision: a full or abbreviated SHA, or a branch name.
+   *
+   * @return The full SHA.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private String resolve(String revision) throws IOException, InterruptedException {
+    if (FULL_SHA.matcher(revision).matches()) {
+      return revision;
+    }
+    String sha = resolvedShas.getIfPresent(revision);
+    if (sha == null) {
+      sha = executor.runGitCommand("rev-parse", "--verify", revision + "^{commit}").trim();
+      if (ABBREVIATED_SHA.matcher(revision).matches() && sha.startsWith(revision)) {
+        resolvedShas.put(revision, sha);
+      }
+    }
+    return sha;
+  }
+
+  /**
+   * Returns many parsed commits. The commits which are not cached are read
+   * with a single git process.
+   *
+   * @param commitShas The full SHAs of the commits.
+   *
+   * @return The commits, by SHA.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  Map<String, GitCommit> getCommits(Collection<String> commitShas) throws IOException, InterruptedException {
+    final Map<String, GitCommit> result = Maps.newHashMap();
+    List<String> missingShas = Lists.newArrayList();
+    for (String sha : Sets.newLinkedHashSet(commitShas)) {
+      GitCommit commit = commits.getIfPresent(sha);
+      if (commit != null) {
+        result.put(sha, commit);
+      } else {
+        missingShas.add(sha);
+      }
+    }
+    if (!missingShas.isEmpty()) {
+      CatFileBatch batch = new CatFileBatch(executor);
+      try {
+        batch.readAll(missingShas, new CatFileBatch.ObjectHandler() {
+          @Override
+          public void objectRead(String sha, long size, InputStream content) throws IOException {
+            if (size < 0) {
+              throw new IOException("Missing commit: " + sha);
+            }
+            GitCommit commit = GitCommit.parse(sha,
+                new String(ByteStreams.toByteArray(content), Charsets.UTF_8));
+            addCommit(commit);
+            result.put(sha, commit);
+          }
+        });
+      } finally {
+        batch.close();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return The parsed commits currently in the cache.
+   */
+  Collection<GitCommit> getCachedCommits() {
+    return ImmutableList.copyOf(commits.asMap().values());
+  }
+
+  /**
+   * Adds an already parsed commit to the cache.
+   *
+   * @param commit The commit.
+   */
+  void addCommit(GitCommit commit) {
+    commits.put(commit.getSha(), commit);
+    nodes.put(commit.getSha(), new CommitNode(commit.getParents(), commit.getCommitTime()));
+  }
+
+  /**
+   * Returns the parents of a commit.
+   *
+   * @param commitSha The SHA of the commit.
+   *
+   * @return The SHAs of the parents.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  List<String> getParents(String commitSha) throws IOException, InterruptedException {
+    return getNode(commitSha).parents;
+  }
+
+  /**
+   * Returns the entry of a commit in the parent index, loading it if needed.
+   *
+   * @param commitSha The SHA of the commit.
+   *
+   * @return The entry.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private CommitNode getNode(String commitSha) throws IOException, InterruptedException {
+    CommitNode node = nodes.getIfPresent(commitSha);
+    if (node == null) {
+      loadParents(commitSha);
+      node = nodes.getIfPresent(commitSha);
+      if (node == null) {
+        GitCommit commit = getCommit(commitSha);
+        node = new CommitNode(commit.getParents(), commit.getCommitTime());
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Checks whether a commit is an ancestor of another one. A commit is considered
+   * an ancestor of itself.
+   *
+   * The check is answered from the parent index. The history is walked
+   * newest first, and once only commits older than the potential ancestor
+   * remain, a few more are visited in case of clock skew before concluding
+   * that it is not an ancestor. Only if more than
+   * {@link #MAX_WALKED_COMMITS} commits would have to be visited, git is
+   * asked.
+   *
+   * @param ancestorSha The SHA of the potential ancestor.
+   * @param descendantSha The SHA of the potential descendant.
+   *
+   * @return <code>true</code> if the first commit is reachable from the second one.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  boolean isAncestor(String ancestorSha, String descendantSha) throws IOException, InterruptedException {
+    if (ancestorSha.equals(descendantSha)) {
+      return true;
+    }
+    // The history is walked newest first, so the ancestor is reached before
+    // the commits older than it, unless the clocks of the committers are skewed.
+    long minCommitTime = getNode(ancestorSha).commitTime - MAX_CLOCK_SKEW_SECONDS;
+    Set<String> visited = Sets.newHashSet(descendantSha);
+    PriorityQueue<QueuedCommit> toVisit = new PriorityQueue<QueuedCommit>();
+    toVisit.add(new QueuedCommit(descendantSha, getNode(descendantSha).commitTime));
+    int walkedCount = 0;
+    int oldCommitCount = 0;
+    while (!toVisit.isEmpty()) {
+      QueuedCommit crt = toVisit.poll();
+      if (crt.sha.equals(ancestorSha)) {
+        return true;
+      }
+      if (crt.commitTime >= minCommitTime) {
+        oldCommitCount = 0;
+      } else if (++oldCommitCount > OLD_COMMITS_SLOP) {
+        // The newest commits left are older than the ancestor.
+        return false;
+      }
+      if (++walkedCount > MAX_WALKED_COMMITS) {
+        // The walk is too long to run over the parent index, which may not
+        // even hold it. Git settles it, with the generation numbers of its
+        // commit-graph file when there is one.
+        return isAncestorInGit(ancestorSha, descendantSha);
+      }
+      for (String parentSha : getParents(crt.sha)) {
+        if (visited.add(parentSha)) {
+          toVisit.add(new QueuedCommit(parentSha, getNode(parentSha).commitTime));
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks with git whether a commit is an ancestor of another one.
+   *
+   * @param ancestorSha The SHA of the potential ancestor.
+   * @param descendantSha The SHA of the potential descendant.
+   *
+   * @return <code>true</code> if the first commit is reachable from the second one.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private boolean isAncestorInGit(String ancestorSha, String descendantSha)
+      throws IOException, InterruptedException {
+    try {
+      executor.runGitCommand("merge-base", "--is-ancestor", ancestorSha, descendantSha);
+      return true;
+    } catch (ProcessExitException e) {
+      // Any other exit code is an error.
+      if (e.getExitCode() == 1) {
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a best common ancestor of two commits: one which is not an
+   * ancestor of another common ancestor.
+   *
+   * The history is walked newest first from both commits, marking the
+   * commits reachable from each of them, and the walk stops as soon as only
+   * the ancestors of the common commits found remain to be visited. So the
+   * cost is proportional to the number of commits since the merge base.
+   *
+   * When there are several best common ancestors, as after criss-cross
+   * merges, one of them is returned.
+   *
+   * @param firstSha The SHA of the first commit.
+   * @param secondSha The SHA of the second commit.
+   *
+   * @return The SHA of the merge base, or <code>null</code> if the commits
+   * have no common ancestor.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  String getMergeBase(String firstSha, String secondSha) throws IOException, InterruptedException {
+    if (firstSha.equals(secondSha)) {
+      return firstSha;
+    }
+    Map<String, Integer> flags = Maps.newHashMap();
+    PriorityQueue<QueuedCommit> toVisit = new PriorityQueue<QueuedCommit>();
+    flags.put(firstSha, REACHABLE_FROM_FIRST);
+    toVisit.add(new QueuedCommit(firstSha, getNode(firstSha).commitTime));
+    flags.put(secondSha, REACHABLE_FROM_SECOND);
+    toVisit.add(new QueuedCommit(secondSha, getNode(secondSha).commitTime));
+    // The common ancestors, newest first.
+    List<String> candidates = Lists.newArrayList();
+    while (hasNonStale(toVisit, flags)) {
+      String crtSha = toVisit.poll().sha;
+      int crtFlags = flags.get(crtSha);
+      if (crtFlags == (REACHABLE_FROM_FIRST | REACHABLE_FROM_SECOND)) {
+        candidates.add(crtSha);
+        // Its ancestors are common too, but not best.
+        crtFlags |= STALE;
+      }
+      for (String parentSha : getParents(crtSha)) {
+        Integer parentFlags = flags.get(parentSha);
+        if (parentFlags == null) {
+          parentFlags = 0;
+        }
+        if ((parentFlags & crtFlags) != crtFlags) {
+          flags.put(parentSha, parentFlags | crtFlags);
+          toVisit.add(new QueuedCommit(parentSha, getNode(parentSha).commitTime));
+        }
+      }
+    }
+    // A candidate reached from a newer candidate when the commit times are
+    // skewed is not a best one.
+    List<String> bestCandidates = Lists.newArrayList();
+    for (String candidate : candidates) {
+      if ((flags.get(candidate) & STALE) == 0) {
+        bestCandidates.add(candidate);
+      }
+    }
+    if (bestCandidates.size() > 1) {
+      for (String candidate : bestCandidates) {
+        boolean best = true;
+        for (String other : bestCandidates) {
+          if (!other.equals(candidate) && isAncestor(candidate, other)) {
+            best = false;
+            break;
+          }
+        }
+        if (best) {
+          return candidate;
+        }
+      }
+    }
+    return bestCandidates.isEmpty() ? null : bestCandidates.get(0);
+  }
+
+  /**
+   * @param toVisit The commits to visit in a merge base walk.
+   * @param flags The flags of the commits reached by the walk.
+   *
+   * @return <code>true</code> if some commit to visit is not reachable from
+   * a common ancestor.
+   */
+  private static boolean hasNonStale(Collection<QueuedCommit> toVisit, Map<String, Integer> flags) {
+    for (QueuedCommit commit : toVisit) {
+      if ((flags.get(commit.sha) & STALE) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Loads in the parent index a batch of commits reachable from the given ones.
+   *
+   * @param commitShas The SHAs of the commits from which to start.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void loadParents(String... commitShas) throws IOException, InterruptedException {
+    loadParentsBetween(Arrays.asList(commitShas), ImmutableList.<String>of());
+  }
+
+  /**
+   * Loads in the parent index, with a single git process, a batch of commits 
+   * reachable from some tips but not from some base commits.
+   *
+   * @param tipShas The SHAs of the commits from which to start.
+   * @param baseShas The SHAs of the commits whose ancestors are not loaded.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void loadParentsBetween(Collection<String> tipShas, Collection<String> baseShas)
+      throws IOException, InterruptedException {
+    List<String> args = Lists.newArrayList("--parents", "--timestamp",
+        "--max-count=" + PARENTS_BATCH_SIZE);
+    args.addAll(tipShas);
+    for (String baseSha : baseShas) {
+      args.add("^" + baseSha);
+    }
+    String output = executor.runGitCommand("rev-list", args.toArray(new String[args.size()]));
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(output)) {
+      // The commit time, the SHA of the commit and the SHAs of its parents.
+      List<String> fields = Splitter.on(' ').splitToList(line.trim());
+      nodes.put(fields.get(1), new CommitNode(
+          ImmutableList.copyOf(fields.subList(2, fields.size())), Long.parseLong(fields.get(0))));
+    }
+  }
+
+  /**
+   * Rethrows the cause of a cache loading failure.
+   *
+   * @param cause The cause.
+   *
+   * @return Never returns normally.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static RuntimeException propagate(Throwable cause) throws IOException, InterruptedException {
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    } else if (cause instanceof InterruptedException) {
+      throw (InterruptedException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    throw new IllegalStateException(cause);
+  }
+}
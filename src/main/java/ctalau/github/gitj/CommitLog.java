@@ -0,0 +1,310 @@
+package ctalau.github.gitj;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * A lazily parsed page of the commit history, backed by a single streaming
+ * <code>git log</code> process.
+ *
+ * Commits are parsed only as they are requested. Closing the log before
+ * reaching its end kills the process, so that the rest of the history is
+ * never walked.
+ *
+ * The cursor of a page holds the commits which the walk would visit next:
+ * the parents of the returned commits which were not returned yet. The next
+ * page starts the walk from them, so its cost does not depend on how many
+ * pages came before.
+ *
+ * @author ctalau
+ */
+public class CommitLog implements Iterator<GitCommit>, Closeable {
+  /**
+   * The prefix of the first line of a log entry, followed by the SHA of the
+   * commit and the SHAs of its parents in the walked history.
+   */
+  private static final String COMMIT_PREFIX = "commit ";
+
+  /**
+   * The indentation of the message lines in a log entry.
+   */
+  private static final String MESSAGE_INDENT = "    ";
+
+  /**
+   * The separator between the SHAs in a cursor.
+   */
+  private static final char CURSOR_SEPARATOR = ':';
+
+  /**
+   * The pattern of a full commit SHA.
+   */
+  private static final Pattern FULL_SHA = Pattern.compile("[0-9a-f]{40}");
+
+  /**
+   * The git log process.
+   */
+  private final GitProcess process;
+
+  /**
+   * The commit cache to which the parsed commits are added.
+   */
+  private final CommitGraph commitGraph;
+
+  /**
+   * The buffered output of the process.
+   */
+  private final InputStream output;
+
+  /**
+   * The number of commits from which the history is walked.
+   */
+  private final int startCount;
+
+  /**
+   * The maximum number of commits to return, or -1 for no limit.
+   */
+  private final int limit;
+
+  /**
+   * The commits which the walk would visit after the ones returned so far.
+   */
+  private final Set<String> pendingShas;
+
+  /**
+   * The SHAs of the commits returned so far.
+   */
+  private final Set<String> returnedShas = Sets.newHashSet();
+
+  /**
+   * The number of commits returned so far.
+   */
+  private int returned;
+
+  /**
+   * The next commit to be returned, already parsed.
+   */
+  private GitCommit next;
+
+  /**
+   * The parents of the next commit in the walked history, which differ from
+   * its actual parents when the history is restricted to a path.
+   */
+  private List<String> nextWalkParents;
+
+  /**
+   * Whether there are more commits after the last one in this page.
+   */
+  private boolean hasMorePages;
+
+  /**
+   * Whether the process output was entirely consumed or the log was closed.
+   */
+  private boolean done;
+
+  /**
+   * Constructor.
+   *
+   * @param process The git log process started with the arguments returned by
+   * {@link #buildLogArguments(Collection, String, int)}.
+   * @param commitGraph The commit cache to which the parsed commits are added.
+   * @param startShas The commits from which the history is walked.
+   * @param limit The maximum number of commits to return, or -1 for no limit.
+   */
+  CommitLog(GitProcess process, CommitGraph commitGraph, Collection<String> startShas, int limit) {
+    this.process = process;
+    this.commitGraph = commitGraph;
+    this.output = new BufferedInputStream(process.getInputStream());
+    this.startCount = startShas.size();
+    this.pendingShas = Sets.newLinkedHashSet(startShas);
+    this.limit = limit;
+  }
+
+  /**
+   * Builds the arguments of the git log command.
+   *
+   * @param startShas The commits from which the history is walked.
+   * @param pathFilter The path to which the history is restricted,
+   * or <code>null</code>.
+   * @param limit The maximum number of commits to return, or -1 for no limit.
+   *
+   * @return The arguments.
+   */
+  static String[] buildLogArguments(Collection<String> startShas, String pathFilter, int limit) {
+    // The raw format holds the actual parents in the commit header, and the
+    // parents in the history restricted to the path on the first line.
+    List<String> args = Lists.newArrayList("-z", "--pretty=raw", "--parents");
+    if (limit >= 0) {
+      // Read one more commit to find out whether there is a next page.
+      args.add("--max-count=" + (limit + 1));
+    }
+    args.addAll(startShas);
+    if (pathFilter != null) {
+      args.add("--");
+      args.add(pathFilter);
+    }
+    return args.toArray(new String[args.size()]);
+  }
+
+  /**
+   * Parses a cursor returned by {@link #getCursor()}.
+   *
+   * @param cursor The cursor.
+   *
+   * @return The SHAs of the commits from which the history walk resumes.
+   */
+  static List<String> parseCursor(String cursor) {
+    List<String> startShas = Splitter.on(CURSOR_SEPARATOR).splitToList(cursor);
+    for (String sha : startShas) {
+      // The SHAs are passed to git as arguments.
+      if (!FULL_SHA.matcher(sha).matches()) {
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+      }
+    }
+    return startShas;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null && !done) {
+      next = readNext();
+      if (limit >= 0 && returned >= limit) {
+        // This is the commit that was read ahead, it belongs to the next page.
+        hasMorePages = next != null;
+        next = null;
+        close();
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public GitCommit next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    GitCommit commit = next;
+    next = null;
+    if (returned == 0 && startCount == 1) {
+      // The single start commit was visited, even if it is not returned
+      // because it did not touch the path.
+      pendingShas.clear();
+    }
+    returned++;
+    returnedShas.add(commit.getSha());
+    pendingShas.remove(commit.getSha());
+    for (String parentSha : nextWalkParents) {
+      if (!returnedShas.contains(parentSha)) {
+        pendingShas.add(parentSha);
+      }
+    }
+    return commit;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns a cursor which can be passed to
+   * {@link GitRepository#log(String, String, int, String)} to resume
+   * the history walk after the last returned commit.
+   *
+   * @return The cursor, or <code>null</code> if there are no more commits.
+   */
+  public String getCursor() {
+    boolean hasMore = hasNext() || hasMorePages;
+    return hasMore ? Joiner.on(CURSOR_SEPARATOR).join(pendingShas) : null;
+  }
+
+  /**
+   * Reads the next commit from the process output.
+   *
+   * @return The next commit or <code>null</code> if the output ended.
+   */
+  private GitCommit readNext() {
+    try {
+      ByteArrayOutputStream entry = new ByteArrayOutputStream();
+      int b;
+      while ((b = output.read()) != -1 && b != 0) {
+        entry.write(b);
+      }
+      if (b == -1 && entry.size() == 0) {
+        done = true;
+        process.waitForSuccess();
+        close();
+        return null;
+      }
+      String entryText = new String(entry.toByteArray(), Charsets.UTF_8);
+      int firstLineEnd = entryText.indexOf('\n');
+      if (!entryText.startsWith(COMMIT_PREFIX) || firstLineEnd == -1) {
+        throw new IOException("Invalid log entry: " + entryText);
+      }
+      List<String> walkShas = Splitter.on(' ').omitEmptyStrings().splitToList(
+          entryText.substring(COMMIT_PREFIX.length(), firstLineEnd));
+      nextWalkParents = walkShas.subList(1, walkShas.size());
+      GitCommit commit = GitCommit.parse(walkShas.get(0),
+          unindentMessage(entryText.substring(firstLineEnd + 1)));
+      commitGraph.addCommit(commit);
+      return commit;
+    } catch (IOException e) {
+      close();
+      throw new UncheckedIOException(e);
+    } catch (InterruptedException e) {
+      close();
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Removes the indentation of the message in the raw format of a commit.
+   *
+   * @param rawCommit The header and the indented message of a commit.
+   *
+   * @return The commit as printed by <code>git cat-file commit</code>.
+   */
+  private static String unindentMessage(String rawCommit) {
+    int headerEnd = rawCommit.indexOf("\n\n");
+    if (headerEnd == -1) {
+      // Empty message.
+      return rawCommit;
+    }
+    StringBuilder commit = new StringBuilder(rawCommit.length());
+    commit.append(rawCommit, 0, headerEnd + 2);
+    boolean firstLine = true;
+    for (String line : Splitter.on('\n').split(rawCommit.substring(headerEnd + 2))) {
+      if (!firstLine) {
+        commit.append('\n');
+      }
+      firstLine = false;
+      commit.append(line.startsWith(MESSAGE_INDENT) ? line.substring(MESSAGE_INDENT.length()) : line);
+    }
+    return commit.toString();
+  }
+
+  /**
+   * Stops the history walk and kills the git process.
+   */
+  @Override
+  public void close() {
+    done = true;
+    process.close();
+  }
+}
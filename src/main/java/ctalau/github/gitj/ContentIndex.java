@@ -0,0 +1,547 @@
+package ctalau.github.gitj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+
+/**
+ * A trigram index of the content of the files at the head of a branch.
+ *
+ * Every text blob is indexed by the distinct sequences of three bytes it
+ * contains. A search only reads the blobs which contain all the trigrams of
+ * the searched text, so its cost depends on the number of candidates rather
+ * than on the size of the repository.
+ *
+ * When the branch moves, only the blobs of the changed paths are indexed.
+ * The moves made by the repository object refresh the index right away,
+ * while the ones made by other processes are checked for by the searches,
+ * at most once every {@link #MAX_STALENESS_MILLIS}. The git processes of a
+ * refresh run without the lock of the index, so that they do not block the
+ * searches.
+ *
+ * @author ctalau
+ */
+public class ContentIndex {
+  /**
+   * The maximum time after which a search checks whether the branch was
+   * moved by another process.
+   */
+  public static final long MAX_STALENESS_MILLIS = 1000;
+
+  /**
+   * The number of bytes checked for NUL characters to detect binary blobs,
+   * like git does.
+   */
+  private static final int BINARY_CHECK_SIZE = 8000;
+
+  /**
+   * The number of blobs waiting to be indexed, per indexing thread.
+   */
+  private static final int QUEUED_BLOBS_PER_THREAD = 16;
+
+  /**
+   * The repository.
+   */
+  private final GitRepository repository;
+
+  /**
+   * The git command executor.
+   */
+  private final GitCommandExecutor executor;
+
+  /**
+   * The indexed branch.
+   */
+  private final String branch;
+
+  /**
+   * The number of threads which extract the trigrams of the blobs.
+   */
+  private final int indexThreads;
+
+  /**
+   * The indexed commit, or <code>null</code> if nothing is indexed yet.
+   */
+  private String commitSha;
+
+  /**
+   * The time when the head of the branch was last read.
+   */
+  private long refreshedNanos;
+
+  /**
+   * Whether the index should be refreshed by the next search, no matter
+   * when the head of the branch was last read.
+   */
+  private boolean stale = true;
+
+  /**
+   * The lock held during a refresh, so that only one runs at a time.
+   */
+  private final Object refreshLock = new Object();
+
+  /**
+   * The blob of every file, by path.
+   */
+  private final Map<String, String> blobsByPath = Maps.newHashMap();
+
+  /**
+   * The paths of every blob, by blob SHA.
+   */
+  private final Map<String, Set<String>> pathsByBlob = Maps.newHashMap();
+
+  /**
+   * The sorted trigrams of every indexed text blob, by blob SHA.
+   */
+  private final Map<String, int[]> trigramsByBlob = Maps.newHashMap();
+
+  /**
+   * The text blobs which contain every trigram.
+   */
+  private final Map<Integer, Set<String>> blobsByTrigram = Maps.newHashMap();
+
+  /**
+   * Constructor.
+   *
+   * @param repository The repository.
+   * @param executor The git command executor.
+   * @param branch The indexed branch.
+   * @param indexThreads The number of threads which extract the trigrams.
+   */
+  ContentIndex(GitRepository repository, GitCommandExecutor executor, String branch, int indexThreads) {
+    this.repository = repository;
+    this.executor = executor;
+    this.branch = branch;
+    this.indexThreads = indexThreads;
+  }
+
+  /**
+   * @return The indexed branch.
+   */
+  public String getBranch() {
+    return branch;
+  }
+
+  /**
+   * @return The indexed commit, or <code>null</code> if the branch does not exist.
+   */
+  public synchronized String getCommitSha() {
+    return commitSha;
+  }
+
+  /**
+   * Returns the files at the head of the branch which contain a text.
+   *
+   * The head may be up to {@link #MAX_STALENESS_MILLIS} old, if the branch
+   * was moved by another process.
+   *
+   * @param text The text to search for.
+   *
+   * @return The paths of the matching files, sorted.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public List<String> search(String text) throws IOException, InterruptedException {
+    final byte[] pattern = text.getBytes(Charsets.UTF_8);
+    if (isStale()) {
+      refresh();
+    }
+    final Map<String, List<String>> candidatePaths = Maps.newHashMap();
+    synchronized (this) {
+      for (String blobSha : findCandidates(pattern)) {
+        candidatePaths.put(blobSha, Lists.newArrayList(pathsByBlob.get(blobSha)));
+      }
+    }
+
+    // Verify the candidates against the content of the blobs, without
+    // holding the lock, so that searches run concurrently.
+    final List<String> paths = Lists.newArrayList();
+    CatFileBatch batch = new CatFileBatch(executor);
+    try {
+      batch.readAll(Lists.newArrayList(candidatePaths.keySet()), new CatFileBatch.ObjectHandler() {
+        @Override
+        public void objectRead(String sha, long size, InputStream content) throws IOException {
+          if (size >= 0) {
+            byte[] bytes = new byte[(int) size];
+            ByteStreams.readFully(content, bytes);
+            if (Bytes.indexOf(bytes, pattern) >= 0) {
+              paths.addAll(candidatePaths.get(sha));
+            }
+          }
+        }
+      });
+    } finally {
+      batch.close();
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  /**
+   * Returns the text blobs which contain all the trigrams of a pattern.
+   *
+   * @param pattern The pattern.
+   *
+   * @return The SHAs of the candidate blobs.
+   */
+  private Set<String> findCandidates(byte[] pattern) {
+    int[] trigrams = extractTrigrams(pattern);
+    if (trigrams.length == 0) {
+      // Too short to use the index.
+      return trigramsByBlob.keySet();
+    }
+    List<Set<String>> postings = Lists.newArrayListWithCapacity(trigrams.length);
+    for (int trigram : trigrams) {
+      Set<String> blobs = blobsByTrigram.get(trigram);
+      if (blobs == null) {
+        return Collections.emptySet();
+      }
+      postings.add(blobs);
+    }
+    // Intersect starting from the rarest trigram.
+    Set<String> candidates = null;
+    for (Set<String> blobs : postings) {
+      if (candidates == null || blobs.size() < candidates.size()) {
+        candidates = blobs;
+      }
+    }
+    candidates = Sets.newHashSet(candidates);
+    for (Set<String> blobs : postings) {
+      candidates.retainAll(blobs);
+    }
+    return candidates;
+  }
+
+  /**
+   * @return <code>true</code> if the head of the branch should be read again
+   * before a search.
+   */
+  private synchronized boolean isStale() {
+    return stale || System.nanoTime() - refreshedNanos
+        >= TimeUnit.MILLISECONDS.toNanos(MAX_STALENESS_MILLIS);
+  }
+
+  /**
+   * Marks the index to be refreshed by the next search, after a refresh
+   * failed.
+   */
+  synchronized void markStale() {
+    stale = true;
+  }
+
+  /**
+   * Brings the index up to date with the head of the branch.
+   *
+   * The first time, all the files are indexed. Afterwards, only the files
+   * changed since the indexed commit are. The changes and the blobs are read
+   * without the lock, which is only held to apply them.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void refresh() throws IOException, InterruptedException {
+    synchronized (refreshLock) {
+      String headSha = repository.getLatestCommitSha(branch);
+      String indexedSha = getCommitSha();
+      Map<String, String> changes;
+      if (headSha == null) {
+        synchronized (this) {
+          clear();
+          commitSha = null;
+          markRefreshed();
+        }
+        return;
+      } else if (headSha.equals(indexedSha)) {
+        synchronized (this) {
+          markRefreshed();
+        }
+        return;
+      } else if (indexedSha == null) {
+        changes = listBlobs(headSha);
+      } else {
+        changes = diffBlobs(indexedSha, headSha);
+      }
+
+      List<String> addedBlobs = Lists.newArrayList();
+      synchronized (this) {
+        for (String blobSha : Sets.newHashSet(changes.values())) {
+          if (blobSha != null && !pathsByBlob.containsKey(blobSha)) {
+            addedBlobs.add(blobSha);
+          }
+        }
+      }
+      Map<String, int[]> addedTrigrams = readTrigrams(addedBlobs);
+
+      synchronized (this) {
+        Map<String, String> removedPaths = Maps.newHashMap();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+          String path = change.getKey();
+          String blobSha = change.getValue();
+          String oldSha = blobSha == null ?
+              blobsByPath.remove(path) : blobsByPath.put(path, blobSha);
+          if (oldSha != null && !oldSha.equals(blobSha)) {
+            removedPaths.put(path, oldSha);
+          }
+          if (blobSha != null && addPath(blobSha, path) && addedTrigrams.containsKey(blobSha)) {
+            addTrigrams(blobSha, addedTrigrams.get(blobSha));
+          }
+        }
+        // Paths are removed after the additions, so that the blobs which just
+        // moved to another path are not dropped and indexed again.
+        for (Map.Entry<String, String> removed : removedPaths.entrySet()) {
+          removePath(removed.getValue(), removed.getKey());
+        }
+        commitSha = headSha;
+        markRefreshed();
+      }
+    }
+  }
+
+  /**
+   * Records that the index matches the head of the branch, as just read.
+   *
+   * Must be called with the lock held.
+   */
+  private void markRefreshed() {
+    refreshedNanos = System.nanoTime();
+    stale = false;
+  }
+
+  /**
+   * Lists the files of a commit.
+   *
+   * @param headSha The SHA of the commit.
+   *
+   * @return The blob of every file, by path.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private Map<String, String> listBlobs(String headSha) throws IOException, InterruptedException {
+    Map<String, String> blobs = Maps.newHashMap();
+    String output = executor.runGitCommand("ls-tree", "-r", "-z", headSha);
+    for (String line : Splitter.on('\0').omitEmptyStrings().split(output)) {
+      int pathStart = line.indexOf('\t');
+      String[] details = line.substring(0, pathStart).split(" ");
+      if (!details[0].equals(DiffEntry.GITLINK_MODE)) {
+        blobs.put(line.substring(pathStart + 1), details[2]);
+      }
+    }
+    return blobs;
+  }
+
+  /**
+   * Lists the files changed between two commits.
+   *
+   * @param oldSha The SHA of the old commit.
+   * @param newSha The SHA of the new commit.
+   *
+   * @return The new blob of every changed file, or <code>null</code> if the
+   * file was removed, by path.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private Map<String, String> diffBlobs(String oldSha, String newSha)
+      throws IOException, InterruptedException {
+    Map<String, String> blobs = Maps.newHashMap();
+    for (DiffEntry entry : repository.diff(oldSha, newSha)) {
+      // Submodules point to commits, whose content is not indexed.
+      blobs.put(entry.getPath(), DiffEntry.GITLINK_MODE.equals(entry.getNewMode())
+          ? null : entry.getNewSha());
+    }
+    return blobs;
+  }
+
+  /**
+   * Records that a path holds a blob.
+   *
+   * @param blobSha The SHA of the blob.
+   * @param path The path.
+   *
+   * @return <code>true</code> if the blob is new and should be indexed.
+   */
+  private boolean addPath(String blobSha, String path) {
+    Set<String> paths = pathsByBlob.get(blobSha);
+    boolean newBlob = paths == null;
+    if (newBlob) {
+      paths = Sets.newHashSet();
+      pathsByBlob.put(blobSha, paths);
+    }
+    paths.add(path);
+    return newBlob;
+  }
+
+  /**
+   * Records that a path does not hold a blob anymore, and drops the blob
+   * from the index if no other path holds it.
+   *
+   * @param blobSha The SHA of the blob.
+   * @param path The path.
+   */
+  private void removePath(String blobSha, String path) {
+    Set<String> paths = pathsByBlob.get(blobSha);
+    paths.remove(path);
+    if (!paths.isEmpty()) {
+      return;
+    }
+    pathsByBlob.remove(blobSha);
+    int[] trigrams = trigramsByBlob.remove(blobSha);
+    if (trigrams != null) {
+      for (int trigram : trigrams) {
+        Set<String> blobs = blobsByTrigram.get(trigram);
+        blobs.remove(blobSha);
+        if (blobs.isEmpty()) {
+          blobsByTrigram.remove(trigram);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops all the indexed content.
+   */
+  private void clear() {
+    blobsByPath.clear();
+    pathsByBlob.clear();
+    trigramsByBlob.clear();
+    blobsByTrigram.clear();
+  }
+
+  /**
+   * Extracts the trigrams of a list of blobs.
+   *
+   * The blobs are read with a single <code>cat-file --batch</code> process,
+   * while their trigrams are extracted by a pool of threads.
+   *
+   * @param blobShas The SHAs of the blobs.
+   *
+   * @return The sorted trigrams of the text blobs, by blob SHA.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private Map<String, int[]> readTrigrams(final List<String> blobShas)
+      throws IOException, InterruptedException {
+    Map<String, int[]> trigramsBySha = Maps.newHashMap();
+    if (blobShas.isEmpty()) {
+      return trigramsBySha;
+    }
+    final ThreadPoolExecutor indexers = new ThreadPoolExecutor(indexThreads, indexThreads,
+        0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(indexThreads * QUEUED_BLOBS_PER_THREAD),
+        // When the queue is full, the reading thread indexes the blob itself.
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    final Map<String, Future<int[]>> results = Maps.newLinkedHashMap();
+    CatFileBatch batch = new CatFileBatch(executor);
+    try {
+      batch.readAll(blobShas, new CatFileBatch.ObjectHandler() {
+        @Override
+        public void objectRead(String sha, long size, InputStream content) throws IOException {
+          if (size < 0) {
+            return;
+          }
+          final byte[] bytes = new byte[(int) size];
+          ByteStreams.readFully(content, bytes);
+          results.put(sha, indexers.submit(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+              return isBinary(bytes) ? null : extractTrigrams(bytes);
+            }
+          }));
+        }
+      });
+      for (Map.Entry<String, Future<int[]>> result : results.entrySet()) {
+        int[] trigrams = result.getValue().get();
+        if (trigrams != null) {
+          trigramsBySha.put(result.getKey(), trigrams);
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      batch.close();
+      indexers.shutdownNow();
+    }
+    return trigramsBySha;
+  }
+
+  /**
+   * Adds the trigrams of a text blob to the index.
+   *
+   * @param blobSha The SHA of the blob.
+   * @param trigrams The sorted, distinct trigrams of the blob.
+   */
+  private void addTrigrams(String blobSha, int[] trigrams) {
+    trigramsByBlob.put(blobSha, trigrams);
+    for (int trigram : trigrams) {
+      Set<String> blobs = blobsByTrigram.get(trigram);
+      if (blobs == null) {
+        blobs = Sets.newHashSet();
+        blobsByTrigram.put(trigram, blobs);
+      }
+      blobs.add(blobSha);
+    }
+  }
+
+  /**
+   * Checks whether some content is binary.
+   *
+   * @param bytes The content.
+   *
+   * @return <code>true</code> if the content has a NUL byte near its start.
+   */
+  private static boolean isBinary(byte[] bytes) {
+    int checkedSize = Math.min(bytes.length, BINARY_CHECK_SIZE);
+    for (int i = 0; i < checkedSize; i++) {
+      if (bytes[i] == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Extracts the distinct trigrams of some content.
+   *
+   * @param bytes The content.
+   *
+   * @return The sorted, distinct trigrams, each packed into an int.
+   */
+  private static int[] extractTrigrams(byte[] bytes) {
+    if (bytes.length < 3) {
+      return new int[0];
+    }
+    int[] trigrams = new int[bytes.length - 2];
+    for (int i = 0; i < trigrams.length; i++) {
+      trigrams[i] = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+    }
+    Arrays.sort(trigrams);
+    int distinct = 0;
+    for (int i = 0; i < trigrams.length; i++) {
+      if (distinct == 0 || trigrams[i] != trigrams[distinct - 1]) {
+        trigrams[distinct++] = trigrams[i];
+      }
+    }
+    return Arrays.copyOf(trigrams, distinct);
+  }
+}
@@ -0,0 +1,146 @@
+package ctalau.github.gitj;
+
+/**
+ * A file that differs between two commits. A file whose mode changed is
+ * reported as modified, even if its content did not change.
+ *
+ * Submodules are reported too, with the {@link #GITLINK_MODE} mode and the
+ * SHA of their commit.
+ *
+ * @author ctalau
+ */
+public class DiffEntry {
+  /**
+   * The mode of a submodule entry, whose SHA is the one of a commit.
+   */
+  public static final String GITLINK_MODE = "160000";
+
+  /**
+   * The kind of change.
+   */
+  public static enum ChangeType {
+    ADDED,
+    MODIFIED,
+    DELETED
+  }
+
+  /**
+   * The kind of change.
+   */
+  private final ChangeType changeType;
+
+  /**
+   * The path of the file.
+   */
+  private final String path;
+
+  /**
+   * The SHA of the blob in the old commit, or <code>null</code> if added.
+   */
+  private final String oldSha;
+
+  /**
+   * The SHA of the blob in the new commit, or <code>null</code> if deleted.
+   */
+  private final String newSha;
+
+  /**
+   * The mode of the file in the old commit, or <code>null</code> if added.
+   */
+  private final String oldMode;
+
+  /**
+   * The mode of the file in the new commit, or <code>null</code> if deleted.
+   */
+  private final String newMode;
+
+  /**
+   * Constructor.
+   *
+   * @param changeType The kind of change.
+   * @param path The path of the file.
+   * @param oldSha The SHA of the blob in the old commit.
+   * @param newSha The SHA of the blob in the new commit.
+   */
+  public DiffEntry(ChangeType changeType, String path, String oldSha, String newSha) {
+    this(changeType, path, oldSha, newSha, null, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param changeType The kind of change.
+   * @param path The path of the file.
+   * @param oldSha The SHA of the blob in the old commit.
+   * @param newSha The SHA of the blob in the new commit.
+   * @param oldMode The mode of the file in the old commit.
+   * @param newMode The mode of the file in the new commit.
+   */
+  public DiffEntry(ChangeType changeType, String path, String oldSha, String newSha,
+      String oldMode, String newMode) {
+    this.changeType = changeType;
+    this.path = path;
+    this.oldSha = oldSha;
+    this.newSha = newSha;
+    this.oldMode = oldMode;
+    this.newMode = newMode;
+  }
+
+  /**
+   * @return The kind of change.
+   */
+  public ChangeType getChangeType() {
+    return changeType;
+  }
+
+  /**
+   * @return The path of the file.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return The SHA of the blob in the old commit, or <code>null</code> if added.
+   */
+  public String getOldSha() {
+    return oldSha;
+  }
+
+  /**
+   * @return The SHA of the blob in the new commit, or <code>null</code> if deleted.
+   */
+  public String getNewSha() {
+    return newSha;
+  }
+
+  /**
+   * @return The mode of the file in the old commit, or <code>null</code> if
+   * added or unknown.
+   */
+  public String getOldMode() {
+    return oldMode;
+  }
+
+  /**
+   * @return The mode of the file in the new commit, or <code>null</code> if
+   * deleted or unknown.
+   */
+  public String getNewMode() {
+    return newMode;
+  }
+
+  /**
+   * @return <code>true</code> if the entry is a submodule in the new commit,
+   * or in the old one if deleted.
+   */
+  public boolean isGitlink() {
+    String mode = newMode != null ? newMode : oldMode;
+    return GITLINK_MODE.equals(mode);
+  }
+
+  @Override
+  public String toString() {
+    return changeType + " " + path;
+  }
+}
@@ -0,0 +1,18 @@
+package ctalau.github.gitj;
+
+/**
+ * Receives the files that differ between two commits as they are found.
+ *
+ * @author ctalau
+ */
+public interface DiffListener {
+  /**
+   * Called for every file that differs between the two commits.
+   *
+   * When the diff is computed in parallel, this method may be called
+   * concurrently from multiple threads.
+   *
+   * @param entry The changed file.
+   */
+  void entryChanged(DiffEntry entry);
+}
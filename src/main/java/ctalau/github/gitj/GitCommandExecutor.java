@@ -8,9 +8,14 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 
@@ -21,8 +26,21 @@ public class GitCommandExecutor {
    */
   @SuppressWarnings("serial")
   static class ProcessExitException extends IOException {
-    public ProcessExitException(String msg) {
+    /**
+     * The exit code of the process.
+     */
+    private final int exitCode;
+
+    public ProcessExitException(String msg, int exitCode) {
       super(msg);
+      this.exitCode = exitCode;
+    }
+
+    /**
+     * @return The exit code of the process.
+     */
+    public int getExitCode() {
+      return exitCode;
     }
   }
   
@@ -31,6 +49,12 @@ public class GitCommandExecutor {
    */
   private File repoLocation;
 
+  /**
+   * The number of processes started, by git command.
+   */
+  private final ConcurrentMap<String, AtomicLong> processCounts = 
+      new ConcurrentHashMap<String, AtomicLong>();
+
   /**
    * Constructor.
    * 
@@ -57,36 +81,116 @@ public class GitCommandExecutor {
    * @throws InterruptedException
    */
   public String pipeIntoGitCommand(String input, String command, String... args) throws IOException, InterruptedException {
-    List<String> arguments = Lists.newArrayListWithCapacity(2 + args.length);
-    arguments.add("git");
-    arguments.add(command);
-    arguments.addAll(Arrays.asList(args));
-    Process process = new ProcessBuilder().command(arguments).directory(this.repoLocation).start();
-    if (input != null) {
-      injectInputStream(input, process);
+    GitEvents.ProcessRun run = GitEvents.beginProcess(command, args);
+    int exitCode = -1;
+    try {
+      Process process = startProcess(run, command, args);
+      if (input != null) {
+        injectInputStream(input, run.countInput(process.getOutputStream()));
+      }
+      String output = readAsciiInputStreamStream(run.countOutput(process.getInputStream()));
+      String error = readAsciiInputStreamStream(process.getErrorStream());
+
+      exitCode = process.waitFor();
+      if (exitCode != 0) {
+        throw new ProcessExitException(error, exitCode);
+      }
+
+      return output;
+    } finally {
+      run.end(exitCode);
     }
-    String output = readAsciiInputStreamStream(process.getInputStream());
-    String error = readAsciiInputStreamStream(process.getErrorStream());
+  }
 
-    int exitCode = process.waitFor();
-    if (exitCode != 0) {
-      throw new ProcessExitException(error);
+  /**
+   * Starts a git command whose input and output are consumed as streams.
+   * 
+   * The caller is responsible for closing the returned process, which 
+   * also kills it if it is still running.
+   * 
+   * @param command
+   *          The git command name: "log", "cat-file", etc.
+   * @param args
+   *          The arguments of that command.
+   * 
+   * @return The running git process.
+   * 
+   * @throws IOException
+   *           If the process could not be started.
+   */
+  public GitProcess startGitCommand(String command, String... args) throws IOException {
+    GitEvents.ProcessRun run = GitEvents.beginProcess(command, args);
+    try {
+      return new GitProcess(startProcess(run, command, args), run);
+    } catch (IOException e) {
+      run.end(-1);
+      throw e;
     }
+  }
 
-    return output;
-    
+  /**
+   * Starts a git process and counts it.
+   * 
+   * @param run The reported run of the process.
+   * @param command The git command name.
+   * @param args The arguments of that command.
+   * 
+   * @return The process.
+   * 
+   * @throws IOException
+   */
+  private Process startProcess(GitEvents.ProcessRun run, String command, String... args) 
+      throws IOException {
+    AtomicLong count = processCounts.get(command);
+    if (count == null) {
+      processCounts.putIfAbsent(command, new AtomicLong());
+      count = processCounts.get(command);
+    }
+    count.incrementAndGet();
+    Process process = new ProcessBuilder().command(buildCommandLine(command, args))
+        .directory(this.repoLocation).start();
+    run.started();
+    return process;
+  }
+
+  /**
+   * Returns the number of git processes started by this executor.
+   * 
+   * @return The number of processes, by git command.
+   */
+  public Map<String, Long> getProcessCounts() {
+    Map<String, Long> counts = Maps.newTreeMap();
+    for (Map.Entry<String, AtomicLong> count : processCounts.entrySet()) {
+      counts.put(count.getKey(), count.getValue().get());
+    }
+    return counts;
+  }
+
+  /**
+   * Builds the command line of a git command.
+   * 
+   * @param command The git command name.
+   * @param args The arguments of that command.
+   * 
+   * @return The command line.
+   */
+  private List<String> buildCommandLine(String command, String... args) {
+    List<String> arguments = Lists.newArrayListWithCapacity(2 + args.length);
+    arguments.add("git");
+    arguments.add(command);
+    arguments.addAll(Arrays.asList(args));
+    return arguments;
   }
 
   /**
    * Inject the given string as the input stream of the process.
    * 
    * @param input The string to pipe in the content.
-   * @param process The process.
+   * @param outputStream The input stream of the process.
    * 
    * @throws IOException
    */
-  private void injectInputStream(String input, Process process) throws IOException {
-    OutputStream outputStream = process.getOutputStream();
+  private void injectInputStream(String input, OutputStream outputStream) throws IOException {
     ByteArrayInputStream inputStream = new ByteArrayInputStream(input
         .getBytes(Charsets.UTF_8));
     try {
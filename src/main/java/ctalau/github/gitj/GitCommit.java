@@ -0,0 +1,170 @@
+package ctalau.github.gitj;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Representation of a Git commit object.
+ *
+ * @author ctalau
+ */
+public class GitCommit {
+  /**
+   * The SHA of the commit.
+   */
+  private final String sha;
+
+  /**
+   * The SHA of the root tree of the commit.
+   */
+  private final String treeSha;
+
+  /**
+   * The SHAs of the parent commits.
+   */
+  private final List<String> parents;
+
+  /**
+   * The author identity: "Name &lt;email&gt; timestamp timezone".
+   */
+  private final String author;
+
+  /**
+   * The committer identity: "Name &lt;email&gt; timestamp timezone".
+   */
+  private final String committer;
+
+  /**
+   * The commit message.
+   */
+  private final String message;
+
+  /**
+   * Constructor.
+   *
+   * @param sha The SHA of the commit.
+   * @param treeSha The SHA of the root tree.
+   * @param parents The SHAs of the parent commits.
+   * @param author The author identity.
+   * @param committer The committer identity.
+   * @param message The commit message.
+   */
+  public GitCommit(String sha, String treeSha, List<String> parents,
+      String author, String committer, String message) {
+    this.sha = sha;
+    this.treeSha = treeSha;
+    this.parents = ImmutableList.copyOf(parents);
+    this.author = author;
+    this.committer = committer;
+    this.message = message;
+  }
+
+  /**
+   * Parses the content of a commit object, as printed by
+   * <code>git cat-file commit</code>.
+   *
+   * @param sha The SHA of the commit.
+   * @param content The content of the commit object.
+   *
+   * @return The commit.
+   */
+  public static GitCommit parse(String sha, String content) {
+    int headerEnd = content.indexOf("\n\n");
+    String header = headerEnd == -1 ? content : content.substring(0, headerEnd);
+    String message = headerEnd == -1 ? "" : content.substring(headerEnd + 2);
+
+    String treeSha = null;
+    String author = null;
+    String committer = null;
+    List<String> parents = Lists.newArrayListWithCapacity(1);
+    for (String line : header.split("\n")) {
+      // Continuation lines of multi-line headers (signatures) start with a space.
+      int keyEnd = line.indexOf(' ');
+      if (keyEnd <= 0) {
+        continue;
+      }
+      String key = line.substring(0, keyEnd);
+      String value = line.substring(keyEnd + 1);
+      if (key.equals("tree")) {
+        treeSha = value;
+      } else if (key.equals("parent")) {
+        parents.add(value);
+      } else if (key.equals("author")) {
+        author = value;
+      } else if (key.equals("committer")) {
+        committer = value;
+      }
+    }
+    return new GitCommit(sha, treeSha, parents, author, committer, message);
+  }
+
+  /**
+   * @return The SHA of the commit.
+   */
+  public String getSha() {
+    return sha;
+  }
+
+  /**
+   * @return The SHA of the root tree of the commit.
+   */
+  public String getTreeSha() {
+    return treeSha;
+  }
+
+  /**
+   * @return The SHAs of the parent commits.
+   */
+  public List<String> getParents() {
+    return parents;
+  }
+
+  /**
+   * @return The author identity: "Name &lt;email&gt; timestamp timezone".
+   */
+  public String getAuthor() {
+    return author;
+  }
+
+  /**
+   * @return The committer identity: "Name &lt;email&gt; timestamp timezone".
+   */
+  public String getCommitter() {
+    return committer;
+  }
+
+  /**
+   * @return The commit time, in seconds since the epoch, or 0 if the
+   * committer identity is malformed.
+   */
+  public long getCommitTime() {
+    if (committer == null) {
+      return 0;
+    }
+    // The timestamp is followed by the timezone.
+    int timezoneStart = committer.lastIndexOf(' ');
+    if (timezoneStart <= 0) {
+      return 0;
+    }
+    int timestampStart = committer.lastIndexOf(' ', timezoneStart - 1);
+    try {
+      return Long.parseLong(committer.substring(timestampStart + 1, timezoneStart));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return The commit message.
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  @Override
+  public String toString() {
+    return sha;
+  }
+}
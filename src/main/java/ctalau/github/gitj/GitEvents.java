@@ -0,0 +1,173 @@
+package ctalau.github.gitj;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reports the repository operations and the git processes that they start
+ * as Java Flight Recorder events.
+ *
+ * JFR is not part of every supported JVM, so the events are recorded by
+ * {@link JfrEvents}, which is loaded by name only when JFR is available.
+ * This also lets the library be built with a JDK without
+ * <code>jdk.jfr</code>, in which case the <code>no-jfr</code> profile leaves
+ * that class out. When JFR is not available, or when the events are
+ * disabled, every operation and process costs one check.
+ *
+ * The events are named <code>ctalau.github.gitj.Operation</code> and
+ * <code>ctalau.github.gitj.Process</code>, and their thresholds can be
+ * configured like the ones of the JDK events, in the recording settings.
+ *
+ * @author ctalau
+ */
+class GitEvents {
+  /**
+   * An operation in progress.
+   */
+  static class Operation {
+    /**
+     * Marks the end of the operation.
+     */
+    void end() {
+    }
+  }
+
+  /**
+   * A git process in progress.
+   */
+  static class ProcessRun {
+    /**
+     * Marks the moment when the process was started by the OS.
+     */
+    void started() {
+    }
+
+    /**
+     * @param input The standard input of the process.
+     *
+     * @return The stream to write instead, which counts the bytes written.
+     */
+    OutputStream countInput(OutputStream input) {
+      return input;
+    }
+
+    /**
+     * @param output The standard output of the process.
+     *
+     * @return The stream to read instead, which counts the bytes read.
+     */
+    InputStream countOutput(InputStream output) {
+      return output;
+    }
+
+    /**
+     * Marks the end of the process. Only the first call has an effect.
+     *
+     * @param exitCode The exit code, or -1 if the process was killed or not
+     * waited for.
+     */
+    void end(int exitCode) {
+    }
+  }
+
+  /**
+   * Records the events.
+   */
+  abstract static class Recorder {
+    /**
+     * Starts an operation.
+     *
+     * @param name The name of the operation.
+     * @param revision The commit, tree or branch the operation applies to.
+     * @param path The path the operation applies to, or <code>null</code>.
+     *
+     * @return The operation, or <code>null</code> if the event is disabled.
+     */
+    abstract Operation beginOperation(String name, String revision, String path);
+
+    /**
+     * Starts a git process.
+     *
+     * @param command The git command name.
+     * @param args The arguments of that command.
+     *
+     * @return The process run, or <code>null</code> if the event is disabled.
+     */
+    abstract ProcessRun beginProcess(String command, String[] args);
+  }
+
+  /**
+   * The name of the class which records JFR events.
+   */
+  private static final String JFR_RECORDER_CLASS = "ctalau.github.gitj.JfrEvents";
+
+  /**
+   * The operation reported when the events are disabled.
+   */
+  private static final Operation NO_OPERATION = new Operation();
+
+  /**
+   * The process reported when the events are disabled.
+   */
+  private static final ProcessRun NO_PROCESS_RUN = new ProcessRun();
+
+  /**
+   * The recorder of JFR events, or <code>null</code> if JFR is not
+   * available in this JVM or in this build.
+   */
+  private static final Recorder JFR_RECORDER = loadJfrRecorder();
+
+  /**
+   * Private constructor.
+   */
+  private GitEvents() {
+  }
+
+  /**
+   * Starts an operation.
+   *
+   * @param name The name of the operation.
+   * @param revision The commit, tree or branch the operation applies to.
+   * @param path The path the operation applies to, or <code>null</code>.
+   *
+   * @return The operation, which must be ended in a finally block.
+   */
+  static Operation beginOperation(String name, String revision, String path) {
+    if (JFR_RECORDER == null) {
+      return NO_OPERATION;
+    }
+    Operation operation = JFR_RECORDER.beginOperation(name, revision, path);
+    return operation != null ? operation : NO_OPERATION;
+  }
+
+  /**
+   * Starts a git process.
+   *
+   * @param command The git command name.
+   * @param args The arguments of that command.
+   *
+   * @return The process run, which must be ended once the process exits.
+   */
+  static ProcessRun beginProcess(String command, String[] args) {
+    if (JFR_RECORDER == null) {
+      return NO_PROCESS_RUN;
+    }
+    ProcessRun run = JFR_RECORDER.beginProcess(command, args);
+    return run != null ? run : NO_PROCESS_RUN;
+  }
+
+  /**
+   * @return The recorder of JFR events, or <code>null</code> if JFR is not
+   * available in this JVM or the recorder was left out of this build.
+   */
+  private static Recorder loadJfrRecorder() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return (Recorder) Class.forName(JFR_RECORDER_CLASS).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      return null;
+    } catch (LinkageError e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package ctalau.github.gitj;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import ctalau.github.gitj.GitCommandExecutor.ProcessExitException;
+
+/**
+ * A running git process whose output is consumed incrementally.
+ *
+ * The error stream is drained in the background so that the process never
+ * blocks on a full pipe while the caller reads the standard output.
+ *
+ * @author ctalau
+ */
+public class GitProcess implements Closeable {
+
+  /**
+   * The underlying OS process.
+   */
+  private final Process process;
+
+  /**
+   * The reported run of the process.
+   */
+  private final GitEvents.ProcessRun run;
+
+  /**
+   * The standard output of the process.
+   */
+  private final InputStream output;
+
+  /**
+   * The standard input of the process.
+   */
+  private final OutputStream input;
+
+  /**
+   * The exit code of the process, or -1 if it was not waited for.
+   */
+  private volatile int exitCode = -1;
+
+  /**
+   * The content of the error stream, collected in the background.
+   */
+  private final ByteArrayOutputStream error = new ByteArrayOutputStream();
+
+  /**
+   * The thread that drains the error stream.
+   */
+  private final Thread errorReader;
+
+  /**
+   * Constructor.
+   *
+   * @param process The started process.
+   * @param run The reported run of the process.
+   */
+  GitProcess(Process process, GitEvents.ProcessRun run) {
+    this.process = process;
+    this.run = run;
+    this.output = run.countOutput(process.getInputStream());
+    this.input = run.countInput(process.getOutputStream());
+    this.errorReader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        InputStream errorStream = GitProcess.this.process.getErrorStream();
+        try {
+          byte[] buffer = new byte[1024];
+          int read;
+          while ((read = errorStream.read(buffer)) != -1) {
+            synchronized (error) {
+              error.write(buffer, 0, read);
+            }
+          }
+        } catch (IOException e) {
+          // The process was killed.
+        }
+      }
+    }, "gitj-stderr");
+    this.errorReader.setDaemon(true);
+    this.errorReader.start();
+  }
+
+  /**
+   * @return The standard output of the process.
+   */
+  public InputStream getInputStream() {
+    return output;
+  }
+
+  /**
+   * @return The standard input of the process.
+   */
+  public OutputStream getOutputStream() {
+    return input;
+  }
+
+  /**
+   * Waits for the process to exit.
+   *
+   * @return The exit code of the process.
+   *
+   * @throws InterruptedException
+   */
+  public int waitFor() throws InterruptedException {
+    exitCode = process.waitFor();
+    errorReader.join();
+    run.end(exitCode);
+    return exitCode;
+  }
+
+  /**
+   * Waits for the process to exit and checks that it succeeded.
+   *
+   * @throws IOException If the process exited with a non-zero exit code.
+   * @throws InterruptedException
+   */
+  public void waitForSuccess() throws IOException, InterruptedException {
+    // Consume the rest of the output so that the process is not blocked.
+    ByteStreams.copy(getInputStream(), ByteStreams.nullOutputStream());
+    if (waitFor() != 0) {
+      throw new ProcessExitException(getErrorOutput(), exitCode);
+    }
+  }
+
+  /**
+   * @return The error output of the process collected so far.
+   */
+  public String getErrorOutput() {
+    synchronized (error) {
+      return new String(error.toByteArray(), Charsets.UTF_8);
+    }
+  }
+
+  /**
+   * Closes the streams of the process and kills it if it is still running.
+   */
+  @Override
+  public void close() {
+    // Killing the process first fails the writes blocked on a full input 
+    // pipe, which otherwise hold the lock needed to close the stream.
+    process.destroy();
+    closeQuietly(input);
+    closeQuietly(output);
+    run.end(exitCode);
+  }
+
+  /**
+   * Closes a stream ignoring errors.
+   *
+   * @param stream The stream to close.
+   */
+  private static void closeQuietly(Closeable stream) {
+    try {
+      stream.close();
+    } catch (IOException e) {
+      // Nothing to do.
+    }
+  }
+}
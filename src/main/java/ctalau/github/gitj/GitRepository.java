@@ -1,11 +1,47 @@
 package ctalau.github.gitj;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicates;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import ctalau.github.gitj.GitCommandExecutor.ProcessExitException;
 import ctalau.github.gitj.GitTree.EntryType;
@@ -15,13 +51,94 @@ import ctalau.github.gitj.GitTree.EntryType;
  *
  */
 public class GitRepository {
+  /**
+   * The logger.
+   */
+  private static final Logger logger = Logger.getLogger(GitRepository.class.getName());
+
   /**
    * The git command executor for the current folder.
    */
   private GitCommandExecutor executor;
 
+  /**
+   * The maximum number of object SHAs remembered as already stored.
+   */
+  private static final int MAX_KNOWN_OBJECTS = 100000;
+
+  /**
+   * The SHAs of the blobs and trees known to be stored in the repository.
+   */
+  private final Cache<String, Boolean> knownObjects = CacheBuilder.newBuilder()
+      .maximumSize(MAX_KNOWN_OBJECTS)
+      .build();
+
+  /**
+   * The maximum number of files whose blame is cached.
+   */
+  private static final int MAX_CACHED_BLAMES = 1000;
+
+  /**
+   * The line ranges of the blamed files, by commit SHA and path.
+   */
+  private final Cache<String, List<BlameRange>> blames = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_BLAMES)
+      .build();
+
+  /**
+   * The listeners notified when a branch is moved.
+   */
+  private final List<BranchListener> branchListeners = new CopyOnWriteArrayList<BranchListener>();
+
+  /**
+   * The branch changes not yet reported to the listeners, in the order in
+   * which they were made.
+   */
+  private final Queue<BranchChangeEvent> pendingBranchChanges =
+      new ConcurrentLinkedQueue<BranchChangeEvent>();
+
+  /**
+   * The lock held while reporting the branch changes, so that they are
+   * reported in order.
+   */
+  private final Object branchChangesLock = new Object();
+
+  /**
+   * The latest snapshot of every branch, by branch name.
+   */
+  private final Map<String, RepositorySnapshot> branchSnapshots = 
+      new ConcurrentHashMap<String, RepositorySnapshot>();
+
+  /**
+   * The content indexes of the branches, by branch name.
+   */
+  private final Map<String, ContentIndex> contentIndexes =
+      new ConcurrentHashMap<String, ContentIndex>();
+
+  /**
+   * The last-change indexes of the branches, by branch name.
+   */
+  private final Map<String, LastChangeIndex> lastChangeIndexes =
+      new ConcurrentHashMap<String, LastChangeIndex>();
+
+  /**
+   * The cache of parsed commits and of their parents.
+   */
+  private final CommitGraph commitGraph;
+
   public GitRepository(File location) {
     this.executor = new GitCommandExecutor(location);
+    this.commitGraph = new CommitGraph(executor);
+  }
+
+  /**
+   * Returns the number of git processes started by this object, which is the 
+   * main cost of most operations.
+   * 
+   * @return The number of processes, by git command.
+   */
+  public Map<String, Long> getProcessCounts() {
+    return executor.getProcessCounts();
   }
 
   /**
@@ -78,29 +195,40 @@ public class GitRepository {
    * 
    * @param commitMessage The commit message.
    * 
-   * @return The SHA of the new commit.
+   * @return The SHA of the new commit, or the source commit SHA if the file
+   * already had the given content.
    * 
    * @throws IOException
    * @throws InterruptedException
    */
   public String writeFile(String sourceCommitSha, String filePath, String fileContent, 
       String commitMessage) throws IOException, InterruptedException {
-    String rootTreeId = getRootTreeSha(sourceCommitSha);
+    GitEvents.Operation operation = GitEvents.beginOperation("writeFile", sourceCommitSha, filePath);
+    try {
+      String rootTreeId = getRootTreeSha(sourceCommitSha);
 
-    String[] filePathParts = filePath.split("/");
-    List<GitTree> trees = computePathToRoot(rootTreeId, filePathParts);
+      String[] filePathParts = filePath.split("/");
+      List<GitTree> trees = computePathToRoot(rootTreeId, filePathParts);
     
-    String blobSha = this.hashBlob(fileContent, filePath);
+      String blobSha = this.hashBlob(fileContent.getBytes(Charsets.UTF_8));
 
-    GitTree fileParent = trees.get(trees.size() - 1);
-    fileParent.updateEntry(filePathParts[filePathParts.length - 1], blobSha, EntryType.BLOB);
-    String ancestorSha = mkTree(fileParent);
+      GitTree fileParent = trees.get(trees.size() - 1);
+      String fileName = filePathParts[filePathParts.length - 1];
+      if (blobSha.equals(fileParent.getEntrySha(fileName)) 
+          && fileParent.getEntryType(fileName) == EntryType.BLOB) {
+        // The file content did not change.
+        return sourceCommitSha;
+      }
+      fileParent.updateEntry(fileName, blobSha, EntryType.BLOB);
+      String ancestorSha = writeTree(fileParent);
     
-    ancestorSha = updateAncestors(filePathParts, trees, ancestorSha);
-    return commitTree(ancestorSha, sourceCommitSha, commitMessage);
+      ancestorSha = updateAncestors(filePathParts, trees, ancestorSha);
+      return commitTreeIfChanged(ancestorSha, rootTreeId, sourceCommitSha, commitMessage);
+    } finally {
+      operation.end();
+    }
   }
   
-
   /**
    * Update the ancestors of the modified file.
    * 
@@ -118,7 +246,7 @@ public class GitRepository {
     for (int i = filePathParts.length - 2; i >= 0; i--) {
       trees.get(i).updateEntry(
           filePathParts[i], ancestorSha, EntryType.TREE);
-      ancestorSha = mkTree(trees.get(i));
+      ancestorSha = writeTree(trees.get(i));
     }
     return ancestorSha;
   }
@@ -126,16 +254,31 @@ public class GitRepository {
   /**
    * Hashes a file into the Git database.
    * 
+   * The content is stored verbatim, without applying any filters. If an 
+   * object with the same content is known to exist, it is not written again.
+   * 
    * @param contents The contents of the file.
-   * @param filePath The path of the file.
    * 
-   * @return The SHA of the generated blob.
+   * @return The SHA of the blob.
    * @throws IOException
    * @throws InterruptedException
    */
-  private String hashBlob(String contents, String filePath) throws IOException, InterruptedException {
-    return executor.pipeIntoGitCommand(
-        contents, "hash-object", "-w", "--stdin", "--path", filePath).trim();
+  String hashBlob(byte[] contents) throws IOException, InterruptedException {
+    String blobSha = ObjectHasher.hashBlob(contents);
+    if (knownObjects.getIfPresent(blobSha) == null) {
+      GitProcess process = executor.startGitCommand(
+          "hash-object", "-w", "--stdin", "--no-filters");
+      try {
+        OutputStream input = process.getOutputStream();
+        input.write(contents);
+        input.close();
+        process.waitForSuccess();
+      } finally {
+        process.close();
+      }
+      knownObjects.put(blobSha, Boolean.TRUE);
+    }
+    return blobSha;
   }
   
 
@@ -147,25 +290,222 @@ public class GitRepository {
    * 
    * @param commitMessage The commit message.
    * 
-   * @return The SHA of the new commit.
+   * @return The SHA of the new commit, or the source commit SHA if the file
+   * did not exist.
    * 
    * @throws IOException
    * @throws InterruptedException
    */
   public String deleteFile(String sourceCommitSha, String filePath, 
       String commitMessage) throws IOException, InterruptedException {
-    String rootTreeId = getRootTreeSha(sourceCommitSha);
+    GitEvents.Operation operation = GitEvents.beginOperation("deleteFile", sourceCommitSha, filePath);
+    try {
+      String rootTreeId = getRootTreeSha(sourceCommitSha);
+
+      String[] filePathParts = filePath.split("/");
+      List<GitTree> trees = computePathToRoot(rootTreeId, filePathParts);
+    
+      GitTree fileParent = trees.get(trees.size() - 1);
+      fileParent.removeEntry(filePathParts[filePathParts.length - 1]);
+      String ancestorSha = writeTree(fileParent);
+    
+      ancestorSha = updateAncestors(filePathParts, trees, ancestorSha);
+    
+      return commitTreeIfChanged(ancestorSha, rootTreeId, sourceCommitSha, commitMessage);
+    } finally {
+      operation.end();
+    }
+  }
+
+  /**
+   * Moves a file or a directory and commits.
+   * 
+   * The moved entry keeps its blob or tree SHA, so no content is read or 
+   * hashed again and only the trees on the two paths are rewritten. 
+   * Directories left empty are removed.
+   * 
+   * @param sourceCommitSha The commit from which we should start.
+   * @param fromPath The path of the file or directory to move.
+   * @param toPath The new path, which must not exist.
+   * @param commitMessage The commit message.
+   * 
+   * @return The SHA of the new commit.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public String move(String sourceCommitSha, String fromPath, String toPath, 
+      String commitMessage) throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("move", sourceCommitSha, fromPath);
+    try {
+      if (toPath.startsWith(fromPath + "/")) {
+        throw new IllegalArgumentException("Cannot move " + fromPath + " inside itself");
+      }
+      String rootTreeId = getRootTreeSha(sourceCommitSha);
+    
+      String[] fromPathParts = fromPath.split("/");
+      List<GitTree> fromTrees = computePathToRoot(rootTreeId, fromPathParts);
+      GitTreeEntry entry = getEntry(fromTrees, fromPathParts);
+      if (entry == null) {
+        throw new NoSuchFileException(fromPath);
+      }
+      String newRootTreeId = writePathToRoot(fromPathParts, fromTrees, null);
+      newRootTreeId = addEntry(newRootTreeId, toPath, entry);
+    
+      return commitTreeIfChanged(newRootTreeId, rootTreeId, sourceCommitSha, commitMessage);
+    } finally {
+      operation.end();
+    }
+  }
 
-    String[] filePathParts = filePath.split("/");
-    List<GitTree> trees = computePathToRoot(rootTreeId, filePathParts);
+  /**
+   * Copies a file or a directory and commits.
+   * 
+   * The copy points to the same blob or tree as the original, so no content 
+   * is read or hashed again.
+   * 
+   * @param sourceCommitSha The commit from which we should start.
+   * @param fromPath The path of the file or directory to copy.
+   * @param toPath The path of the copy, which must not exist.
+   * @param commitMessage The commit message.
+   * 
+   * @return The SHA of the new commit.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public String copy(String sourceCommitSha, String fromPath, String toPath, 
+      String commitMessage) throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("copy", sourceCommitSha, fromPath);
+    try {
+      String rootTreeId = getRootTreeSha(sourceCommitSha);
+    
+      String[] fromPathParts = fromPath.split("/");
+      GitTreeEntry entry = getEntry(computePathToRoot(rootTreeId, fromPathParts), fromPathParts);
+      if (entry == null) {
+        throw new NoSuchFileException(fromPath);
+      }
+      String newRootTreeId = addEntry(rootTreeId, toPath, entry);
     
-    GitTree fileParent = trees.get(trees.size() - 1);
-    fileParent.removeEntry(filePathParts[filePathParts.length - 1]);
-    String ancestorSha = mkTree(fileParent);
+      return commitTreeIfChanged(newRootTreeId, rootTreeId, sourceCommitSha, commitMessage);
+    } finally {
+      operation.end();
+    }
+  }
+
+  /**
+   * Deletes a directory with all its content and commits. 
+   * 
+   * Only the trees on the path to the directory are rewritten, no matter how 
+   * large the directory is.
+   * 
+   * @param sourceCommitSha The commit from which we should start.
+   * @param dirPath The path of the directory.
+   * @param commitMessage The commit message.
+   * 
+   * @return The SHA of the new commit, or the source commit SHA if the 
+   * directory did not exist.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public String deleteDirectory(String sourceCommitSha, String dirPath, 
+      String commitMessage) throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("deleteDirectory", sourceCommitSha, dirPath);
+    try {
+      String rootTreeId = getRootTreeSha(sourceCommitSha);
     
-    ancestorSha = updateAncestors(filePathParts, trees, ancestorSha);
+      String[] dirPathParts = dirPath.split("/");
+      List<GitTree> trees = computePathToRoot(rootTreeId, dirPathParts);
+      GitTreeEntry entry = getEntry(trees, dirPathParts);
+      if (entry == null) {
+        return sourceCommitSha;
+      }
+      if (entry.getType() != EntryType.TREE) {
+        throw new NotDirectoryException(dirPath);
+      }
+      String newRootTreeId = writePathToRoot(dirPathParts, trees, null);
     
-    return commitTree(ancestorSha, sourceCommitSha, commitMessage);
+      return commitTreeIfChanged(newRootTreeId, rootTreeId, sourceCommitSha, commitMessage);
+    } finally {
+      operation.end();
+    }
+  }
+
+  /**
+   * Adds an entry at a path which must not exist.
+   * 
+   * @param rootTreeId The SHA of the root tree.
+   * @param path The path of the new entry.
+   * @param entry The new entry.
+   * 
+   * @return The SHA of the new root tree.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private String addEntry(String rootTreeId, String path, GitTreeEntry entry) 
+      throws IOException, InterruptedException {
+    String[] pathParts = path.split("/");
+    List<GitTree> trees = computePathToRoot(rootTreeId, pathParts);
+    if (getEntry(trees, pathParts) != null) {
+      throw new FileAlreadyExistsException(path);
+    }
+    return writePathToRoot(pathParts, trees, entry);
+  }
+
+  /**
+   * Returns the entry at the end of a path.
+   * 
+   * @param trees The trees on the path, as returned by 
+   * {@link #computePathToRoot(String, String[])}.
+   * @param pathParts The path entries.
+   * 
+   * @return The entry, or <code>null</code> if it does not exist.
+   */
+  private static GitTreeEntry getEntry(List<GitTree> trees, String[] pathParts) {
+    GitTree parent = trees.get(trees.size() - 1);
+    String name = pathParts[pathParts.length - 1];
+    String sha = parent.getEntrySha(name);
+    return sha == null ? null : new GitTreeEntry(parent.getEntryMode(name), sha);
+  }
+
+  /**
+   * Sets or removes the entry at the end of a path and rewrites the trees up 
+   * to the root. The directories left empty are removed.
+   * 
+   * @param pathParts The path entries.
+   * @param trees The trees on the path, as returned by 
+   * {@link #computePathToRoot(String, String[])}.
+   * @param entry The new entry, or <code>null</code> to remove it.
+   * 
+   * @return The SHA of the new root tree.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private String writePathToRoot(String[] pathParts, List<GitTree> trees, GitTreeEntry entry)
+      throws IOException, InterruptedException {
+    String name = pathParts[pathParts.length - 1];
+    GitTree parent = trees.get(trees.size() - 1);
+    if (entry == null) {
+      parent.removeEntry(name);
+    } else {
+      parent.updateEntry(name, entry.getMode(), entry.getSha());
+    }
+    String childSha = null;
+    for (int i = pathParts.length - 1; i >= 0; i--) {
+      GitTree tree = trees.get(i);
+      if (i < pathParts.length - 1) {
+        if (childSha == null) {
+          tree.removeEntry(pathParts[i]);
+        } else {
+          tree.updateEntry(pathParts[i], childSha, EntryType.TREE);
+        }
+      }
+      childSha = i > 0 && tree.getEntryNames().isEmpty() ? null : writeTree(tree);
+    }
+    return childSha;
   }
 
   /**
@@ -186,8 +526,7 @@ public class GitRepository {
     for (int i = 0; i < filePathParts.length; i++) {
       GitTree crtTree = null;
       if (crtTreeId != null) {
-        String treeContent = executor.runGitCommand("ls-tree", crtTreeId);
-        crtTree = new GitTree(splitInLines(treeContent));
+        crtTree = readTree(crtTreeId);
         crtTreeId = crtTree.getEntrySha(filePathParts[i]);
       } else {
         crtTree = new GitTree(new String[0]);
@@ -197,6 +536,46 @@ public class GitRepository {
     return trees;
   }
 
+  /**
+   * Reads a tree object.
+   * 
+   * @param treeSha The SHA of the tree.
+   * 
+   * @return The tree.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  GitTree readTree(String treeSha) throws IOException, InterruptedException {
+    String treeContent = executor.runGitCommand("ls-tree", treeSha);
+    GitTree tree = new GitTree(splitInLines(treeContent));
+    knownObjects.put(treeSha, Boolean.TRUE);
+    for (String name : tree.getEntryNames()) {
+      if (!tree.getEntryMode(name).equals(DiffEntry.GITLINK_MODE)) {
+        knownObjects.put(tree.getEntrySha(name), Boolean.TRUE);
+      }
+    }
+    return tree;
+  }
+
+  /**
+   * Writes a tree object, unless an identical one is known to exist.
+   * 
+   * @param tree The content of the tree object.
+   * @return The SHA of the tree object.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  String writeTree(GitTree tree) throws IOException, InterruptedException {
+    String treeSha = tree.computeSha();
+    if (knownObjects.getIfPresent(treeSha) == null) {
+      treeSha = mkTree(tree);
+      knownObjects.put(treeSha, Boolean.TRUE);
+    }
+    return treeSha;
+  }
+
   /**
    * Creates a tree object and returns its SHA.
    * @param tree The content of the tree object.
@@ -209,6 +588,27 @@ public class GitRepository {
     return executor.pipeIntoGitCommand(tree.toString(), "mktree").trim();
   }
   
+  /**
+   * Commits a tree, unless it is the same as the one of the parent commit.
+   * 
+   * @param treeSha The SHA of the tree.
+   * @param parentTreeSha The SHA of the tree of the parent commit.
+   * @param parentSha The SHA of the parent commit.
+   * @param commitMessage The commit message.
+   * 
+   * @return The commit SHA, or the parent SHA if the tree did not change.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private String commitTreeIfChanged(String treeSha, String parentTreeSha, String parentSha, 
+      String commitMessage) throws IOException, InterruptedException {
+    if (treeSha.equals(parentTreeSha)) {
+      return parentSha;
+    }
+    return commitTree(treeSha, parentSha, commitMessage);
+  }
+
   /**
    * Commits the a tree.
    * 
@@ -237,10 +637,7 @@ public class GitRepository {
    * @throws InterruptedException
    */
   private String getRootTreeSha(String sourceCommitSha) throws IOException, InterruptedException {
-    String commitDetails = executor.runGitCommand("cat-file", "commit", sourceCommitSha);
-    String commitTreeDetails = splitInLines(commitDetails)[0];
-    String rootTreeId = commitTreeDetails.split(" ")[1];
-    return rootTreeId;
+    return commitGraph.getCommit(sourceCommitSha).getTreeSha();
   }
   
   /**
@@ -248,6 +645,9 @@ public class GitRepository {
    * 
    * If the branch already exists, and if one of the parents of the 
    * given commit is not the latest commit on that branch, this method fails.
+   * If the branch already points to the given commit, for example after a 
+   * write that did not change anything, this method succeeds without 
+   * moving it.
    * 
    * Note: This method is the only one that is not atomic. It should not be called
    * from multiple processes simultaneously. Calling it from multiple threads is OK.
@@ -255,98 +655,1010 @@ public class GitRepository {
    * @param branch The name of the branch.
    * @param commitSha The commit at which to point the branch to.
    *
-   * @return <code>true</code> if the branch was moved.
+   * @return <code>true</code> if the branch was moved or already pointed to 
+   * the commit.
    * 
    * @throws IOException
    * @throws InterruptedException
    */
   public boolean moveBranch(String branch, String commitSha) throws IOException, InterruptedException {
-    List<String> commitParents = this.getCommitParents(commitSha);
-    boolean moved = false;
-    synchronized (this) {
-      String branchCommitSha = this.getLatestCommitSha(branch);
-      if (branchCommitSha == null || commitParents.contains(branchCommitSha)) {
-        executor.runGitCommand("update-ref", "refs/heads/" + branch, commitSha);
-        moved = true;
+    GitEvents.Operation operation = GitEvents.beginOperation("moveBranch", branch, null);
+    try {
+      List<String> commitParents = commitGraph.getCommit(commitSha).getParents();
+      boolean moved = false;
+      synchronized (this) {
+        String branchCommitSha = this.getLatestCommitSha(branch);
+        if (commitSha.equals(branchCommitSha)) {
+          return true;
+        }
+        if (branchCommitSha == null || commitParents.contains(branchCommitSha)) {
+          executor.runGitCommand("update-ref", "refs/heads/" + branch, commitSha);
+          moved = true;
+          queueBranchChange(new BranchChangeEvent(branch, branchCommitSha, commitSha));
+        }
       }
+      if (moved) {
+        fireBranchChanges();
+        refreshContentIndex(branch);
+      }
+      return moved;
+    } finally {
+      operation.end();
     }
-    return moved;
   }
   
   /**
-   * Return the parents of a commit.
-   * 
-   * @param commitSha The commit SHA.
-   * 
-   * @return The parent commits.
-   * 
+   * Starts indexing the content of the files at the head of a branch, so that
+   * they can be searched quickly.
+   *
+   * The index is built from all the files at first, then it is updated with
+   * the changed files whenever the branch is moved by this object. Branch
+   * changes made by other processes are picked up by the searches, after at
+   * most {@link ContentIndex#MAX_STALENESS_MILLIS}.
+   *
+   * @param branch The name of the branch.
+   *
+   * @return The index of the branch.
+   *
    * @throws IOException
    * @throws InterruptedException
    */
-  private List<String> getCommitParents(String commitSha) throws IOException, InterruptedException {
-    String commitDetails = executor.runGitCommand("cat-file", "commit", commitSha);
-    List<String> parents = Lists.newArrayList();
-    for (String line : splitInLines(commitDetails)) {
-      if (line.startsWith("parent")) {
-        parents.add(line.split(" ")[1]);
+  public ContentIndex indexBranchContent(String branch) throws IOException, InterruptedException {
+    ContentIndex contentIndex = contentIndexes.get(branch);
+    if (contentIndex == null) {
+      int indexThreads = Runtime.getRuntime().availableProcessors();
+      contentIndex = new ContentIndex(this, executor, branch, indexThreads);
+      ContentIndex existingIndex = contentIndexes.putIfAbsent(branch, contentIndex);
+      if (existingIndex != null) {
+        contentIndex = existingIndex;
       }
     }
-    return parents;
+    contentIndex.refresh();
+    return contentIndex;
+  }
+
+  /**
+   * Brings the content index of a branch up to date, if the branch is indexed.
+   *
+   * The branch has already moved, so failures are only logged, and the
+   * index is refreshed again by the next search.
+   *
+   * @param branch The name of the branch.
+   */
+  void refreshContentIndex(String branch) {
+    ContentIndex contentIndex = contentIndexes.get(branch);
+    if (contentIndex == null) {
+      return;
+    }
+    try {
+      contentIndex.refresh();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not refresh the content index of " + branch, e);
+      contentIndex.markStale();
+    } catch (InterruptedException e) {
+      contentIndex.markStale();
+      Thread.currentThread().interrupt();
+    }
   }
 
+  /**
+   * Stops indexing the content of a branch.
+   *
+   * @param branch The name of the branch.
+   */
+  public void removeContentIndex(String branch) {
+    contentIndexes.remove(branch);
+  }
 
   /**
-   * Split the string in lines.
+   * Starts a transaction which updates many branches at once, all together 
+   * or not at all.
    * 
-   * @param string The string to split.
+   * @return The new transaction.
+   */
+  public RefTransaction newRefTransaction() {
+    return new RefTransaction(this, executor, commitGraph);
+  }
+
+  /**
+   * Registers a listener notified after every branch moved by this repository 
+   * object. Branch changes made by other processes are not reported, see 
+   * {@link #watchBranches(BranchListener)} for that.
    * 
-   * @return The lines array.
+   * @param listener The listener.
    */
-  private String[] splitInLines(String string) {
-    String[] split = string.split("\\r?\\n");
-    if (split.length == 1 && split[0].length() == 0) {
-      split = new String[0];
+  public void addBranchListener(BranchListener listener) {
+    branchListeners.add(listener);
+  }
+
+  /**
+   * Removes a listener registered with {@link #addBranchListener(BranchListener)}.
+   * 
+   * @param listener The listener.
+   */
+  public void removeBranchListener(BranchListener listener) {
+    branchListeners.remove(listener);
+  }
+
+  /**
+   * Records a branch change, to be reported by {@link #fireBranchChanges()}.
+   * 
+   * Must be called with the lock held, right after the change.
+   * 
+   * @param event The change.
+   */
+  void queueBranchChange(BranchChangeEvent event) {
+    pendingBranchChanges.add(event);
+  }
+
+  /**
+   * Notifies the branch listeners about the recorded changes, in order.
+   * 
+   * Must be called without the lock held, so that the listeners cannot block
+   * the other operations. A failing listener does not prevent the others from
+   * being notified.
+   */
+  void fireBranchChanges() {
+    synchronized (branchChangesLock) {
+      BranchChangeEvent event;
+      while ((event = pendingBranchChanges.poll()) != null) {
+        for (BranchListener listener : branchListeners) {
+          try {
+            listener.branchChanged(event);
+          } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Branch listener failed for " + event.getBranch(), e);
+          }
+        }
+      }
     }
-    return split;
   }
 
-  
   /**
-   * Reads the content of a file at a specific commit.
+   * Starts watching all the branches of the repository, no matter which 
+   * process changes them.
    * 
-   * @param sha The SHA of the commit in which we are interested.
-   * @param path The path of the file that we want to read.
+   * Branch moves performed by this object are reported immediately, the others
+   * are detected from file system events on the ref files. Bursts of changes
+   * are coalesced.
    * 
-   * @return The content of the file.
+   * @param listener The listener to notify. It is called from a background 
+   * thread as well as from the threads that move branches.
+   * 
+   * @return The watcher, which should be closed to stop watching.
    * 
    * @throws IOException
    * @throws InterruptedException
    */
-  public String readFile(String sha, String path) throws IOException, InterruptedException {
-    return executor.runGitCommand("show", sha + ":" + path);
+  public BranchWatcher watchBranches(BranchListener listener) throws IOException, InterruptedException {
+    return new BranchWatcher(this, executor, listener);
   }
-  
+
   /**
-   * Lists the directory contents on a given branch.
+   * Starts replicating the branch moves performed by this object to some
+   * mirror repositories.
+   *
+   * The pushes are performed asynchronously. Successive moves of a branch
+   * are coalesced and only its latest commit is pushed.
+   *
+   * @param mirrors The paths or URLs of the mirror repositories.
+   *
+   * @return The replicator, which should be closed to stop replicating.
+   */
+  public BranchReplicator replicateTo(String... mirrors) {
+    return new BranchReplicator(this, executor, Arrays.asList(mirrors));
+  }
+
+  /**
+   * Returns the files that differ between two commits, sorted by path.
    * 
-   * @param sha The SHA of the commit at on which we want to list the folder entries.
-   * @param dirPath The path to the directory.
+   * @param oldCommitSha The SHA of the old commit.
+   * @param newCommitSha The SHA of the new commit.
    * 
-   * @return The list of directory entries.
+   * @return The changed files.
    * 
    * @throws IOException
    * @throws InterruptedException
    */
-  public List<String> listFiles(String sha, String dirPath) throws IOException, InterruptedException {
-    String fileList = executor.runGitCommand("ls-tree", sha, dirPath + "/", "--name-only");
-    List<String> escapedFilePaths = Arrays.asList(splitInLines(fileList));
-    List<String> fileNames = Lists.newArrayListWithCapacity(escapedFilePaths.size());
-    for (String escapedFilePath: escapedFilePaths) {
-      String filePath = escapedFilePath;
-      filePath = Unescaper.unescapeCStringLiteral(escapedFilePath);
-      int nameStartIndex = filePath.lastIndexOf(File.separatorChar) + 1;
-      fileNames.add(filePath.substring(nameStartIndex));
-    }
-    return fileNames;
+  public List<DiffEntry> diff(String oldCommitSha, String newCommitSha) 
+      throws IOException, InterruptedException {
+    final List<DiffEntry> entries = Lists.newArrayList();
+    diff(oldCommitSha, newCommitSha, null, null, new DiffListener() {
+      @Override
+      public void entryChanged(DiffEntry entry) {
+        entries.add(entry);
+      }
+    });
+    Collections.sort(entries, new Comparator<DiffEntry>() {
+      @Override
+      public int compare(DiffEntry first, DiffEntry second) {
+        return first.getPath().compareTo(second.getPath());
+      }
+    });
+    return entries;
+  }
+
+  /**
+   * Streams the files that differ between two commits to a listener.
+   * 
+   * The trees of the two commits are walked in lockstep and subtrees which 
+   * are identical in both commits are skipped without being read.
+   * 
+   * @param oldCommitSha The SHA of the old commit.
+   * @param newCommitSha The SHA of the new commit.
+   * @param pathFilters If not <code>null</code>, only the files at or under 
+   * these paths are reported.
+   * @param parallelExecutor If not <code>null</code>, the subtrees are walked in
+   * parallel on this executor. The listener is then called from its threads.
+   * @param listener The listener notified about every changed file.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void diff(String oldCommitSha, String newCommitSha, Collection<String> pathFilters,
+      ExecutorService parallelExecutor, DiffListener listener) 
+          throws IOException, InterruptedException {
+    new TreeDiff(this, pathFilters, parallelExecutor, listener)
+        .run(getRootTreeSha(oldCommitSha), getRootTreeSha(newCommitSha));
+  }
+
+  /**
+   * Returns the commits that last changed every line of a file.
+   * 
+   * @param commitSha The SHA of the commit.
+   * @param path The path of the file.
+   * 
+   * @return The line ranges, in the order of the lines.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public List<BlameRange> blame(String commitSha, String path) 
+      throws IOException, InterruptedException {
+    final List<BlameRange> ranges = Lists.newArrayList();
+    blame(commitSha, path, new BlameListener() {
+      @Override
+      public void rangeBlamed(BlameRange range) {
+        ranges.add(range);
+      }
+    });
+    Collections.sort(ranges, new Comparator<BlameRange>() {
+      @Override
+      public int compare(BlameRange first, BlameRange second) {
+        return Integer.compare(first.getStartLine(), second.getStartLine());
+      }
+    });
+    return ranges;
+  }
+
+  /**
+   * Streams the commits that last changed every line of a file to a listener, 
+   * as git finds them.
+   * 
+   * The result is cached. If the file is not cached for the commit, but it is 
+   * for a parent commit in which the file has the same content, the result of
+   * the parent is reused without running blame again.
+   * 
+   * @param commitSha The SHA of the commit.
+   * @param path The path of the file.
+   * @param listener The listener notified about every line range.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void blame(String commitSha, String path, BlameListener listener) 
+      throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("blame", commitSha, path);
+    try {
+      String key = commitSha + ":" + path;
+      List<BlameRange> ranges = blames.getIfPresent(key);
+      if (ranges == null) {
+        ranges = getUnchangedParentBlame(commitSha, path);
+      }
+      if (ranges != null) {
+        blames.put(key, ranges);
+        for (BlameRange range : ranges) {
+          listener.rangeBlamed(range);
+        }
+        return;
+      }
+
+      ranges = Lists.newArrayList();
+      GitProcess process = executor.startGitCommand("blame", "--incremental", commitSha, "--", path);
+      try {
+        BufferedReader output = new BufferedReader(
+            new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+        // Every range starts with a "<sha> <original line> <line> <count>" 
+        // line and ends with the "filename" line.
+        String[] rangeHeader = null;
+        String line;
+        while ((line = output.readLine()) != null) {
+          if (rangeHeader == null) {
+            rangeHeader = line.split(" ");
+          } else if (line.startsWith("filename ")) {
+            BlameRange range = new BlameRange(rangeHeader[0],
+                Unescaper.unescapeCStringLiteral(line.substring("filename ".length())),
+                Integer.parseInt(rangeHeader[1]), Integer.parseInt(rangeHeader[2]), 
+                Integer.parseInt(rangeHeader[3]));
+            ranges.add(range);
+            listener.rangeBlamed(range);
+            rangeHeader = null;
+          }
+        }
+        process.waitForSuccess();
+      } finally {
+        process.close();
+      }
+      blames.put(key, Collections.unmodifiableList(ranges));
+    } finally {
+      operation.end();
+    }
+  }
+
+  /**
+   * Returns the cached blame of a file for a parent commit, if the file has 
+   * the same content in the commit and in that parent. 
+   * 
+   * Like git, the first parent with the same content gets all the blame.
+   * 
+   * @param commitSha The SHA of the commit.
+   * @param path The path of the file.
+   * 
+   * @return The line ranges, or <code>null</code> if there is no such 
+   * cached blame.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private List<BlameRange> getUnchangedParentBlame(String commitSha, String path) 
+      throws IOException, InterruptedException {
+    List<String> parents = commitGraph.getCommit(commitSha).getParents();
+    boolean anyParentCached = false;
+    for (String parent : parents) {
+      anyParentCached |= blames.getIfPresent(parent + ":" + path) != null;
+    }
+    if (!anyParentCached) {
+      return null;
+    }
+
+    StringBuilder input = new StringBuilder();
+    input.append(commitSha).append(':').append(path).append('\n');
+    for (String parent : parents) {
+      input.append(parent).append(':').append(path).append('\n');
+    }
+    String[] blobShas = splitInLines(executor.pipeIntoGitCommand(input.toString(), 
+        "cat-file", "--batch-check=%(objectname)"));
+    for (int i = 0; i < parents.size(); i++) {
+      // Missing files are reported with their distinct object names.
+      if (blobShas[i + 1].equals(blobShas[0])) {
+        return blames.getIfPresent(parents.get(i) + ":" + path);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Merges two commits, without a working tree.
+   * 
+   * The merge base is found in the commit graph and the trees are merged 
+   * with respect to it: the entries changed on one side only are taken by 
+   * SHA, and only the files changed on both sides are merged line by line. 
+   * Commits without a common ancestor are merged as if their base was empty.
+   * 
+   * If their commit is already merged into ours, no commit is created. 
+   * Otherwise, a merge commit is created even if ours could be fast-forwarded, 
+   * so that the branch of our commit can be moved to it.
+   * 
+   * @param oursSha The SHA of our commit, which is the first parent.
+   * @param theirsSha The SHA of their commit, which is the second parent.
+   * @param commitMessage The commit message.
+   * 
+   * @return The result with the SHA of the merge commit, or with the 
+   * conflicts, in which case no commit is created.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public MergeResult merge(String oursSha, String theirsSha, String commitMessage) 
+      throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("merge", oursSha, null);
+    try {
+      String baseSha = commitGraph.getMergeBase(oursSha, theirsSha);
+      if (theirsSha.equals(baseSha)) {
+        return new MergeResult(oursSha, Collections.<MergeConflict>emptyList());
+      }
+      TreeMerge treeMerge = new TreeMerge(this, executor);
+      String treeSha = treeMerge.run(baseSha != null ? getRootTreeSha(baseSha) : null,
+          getRootTreeSha(oursSha), getRootTreeSha(theirsSha));
+      if (!treeMerge.getConflicts().isEmpty()) {
+        return new MergeResult(null, treeMerge.getConflicts());
+      }
+      String commitSha = executor.runGitCommand("commit-tree", treeSha, 
+          "-p", oursSha, "-p", theirsSha, "-m", commitMessage).trim();
+      return new MergeResult(commitSha, Collections.<MergeConflict>emptyList());
+    } finally {
+      operation.end();
+    }
+  }
+
+  /**
+   * Returns a lazily parsed page of the commit history.
+   *
+   * The history is streamed from a single git process which is killed as soon as
+   * the page is complete or the returned log is closed, so only the commits which
+   * are actually consumed are walked.
+   *
+   * @param ref The branch name or commit SHA from which the history is walked.
+   * @param pathFilter If not <code>null</code>, only the commits that touched
+   * this path are returned.
+   * @param limit The maximum number of commits in the page, or -1 for no limit.
+   * @param cursor The cursor returned by {@link CommitLog#getCursor()} for the
+   * previous page, or <code>null</code> to start with the latest commit.
+   * When specified, the <code>ref</code> is ignored and the walk resumes where the
+   * previous page ended, even if the branch moved in the meantime.
+   *
+   * @return The commit log. It should be closed if not consumed entirely.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public CommitLog log(String ref, String pathFilter, int limit, String cursor)
+      throws IOException, InterruptedException {
+    List<String> startShas;
+    if (cursor != null) {
+      startShas = CommitLog.parseCursor(cursor);
+    } else {
+      startShas = ImmutableList.of(
+          executor.runGitCommand("rev-parse", "--verify", ref + "^{commit}").trim());
+    }
+    GitProcess process = executor.startGitCommand("log",
+        CommitLog.buildLogArguments(startShas, pathFilter, limit));
+    return new CommitLog(process, commitGraph, startShas, limit);
+  }
+
+  /**
+   * Reads a commit object. 
+   * 
+   * The parsed commits are cached, so every commit is read from git only once.
+   * 
+   * @param commitSha The SHA of the commit.
+   * 
+   * @return The parsed commit.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public GitCommit readCommit(String commitSha) throws IOException, InterruptedException {
+    return commitGraph.getCommit(commitSha);
+  }
+
+  /**
+   * Checks whether a commit is an ancestor of another one. A commit is
+   * considered an ancestor of itself.
+   * 
+   * The check is performed on an in-memory index of the commit parents which
+   * is filled in batches, so repeated checks do not run git.
+   * 
+   * @param ancestorSha The SHA of the potential ancestor.
+   * @param descendantSha The SHA of the potential descendant.
+   * 
+   * @return <code>true</code> if the first commit is reachable from the second one.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public boolean isAncestor(String ancestorSha, String descendantSha) 
+      throws IOException, InterruptedException {
+    return commitGraph.isAncestor(ancestorSha, descendantSha);
+  }
+
+  /**
+   * Split the string in lines.
+   * 
+   * @param string The string to split.
+   * 
+   * @return The lines array.
+   */
+  private String[] splitInLines(String string) {
+    String[] split = string.split("\\r?\\n");
+    if (split.length == 1 && split[0].length() == 0) {
+      split = new String[0];
+    }
+    return split;
+  }
+
+  
+  /**
+   * Reads the content of a file at a specific commit.
+   * 
+   * @param sha The SHA of the commit in which we are interested.
+   * @param path The path of the file that we want to read.
+   * 
+   * @return The content of the file.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public String readFile(String sha, String path) throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("readFile", sha, path);
+    try {
+      return executor.runGitCommand("show", sha + ":" + path);
+    } finally {
+      operation.end();
+    }
+  }
+  
+  /**
+   * Returns the size of a file at a specific commit, without reading it.
+   * 
+   * @param sha The SHA of the commit in which we are interested.
+   * @param path The path of the file.
+   * 
+   * @return The size of the file in bytes.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public long size(String sha, String path) throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("size", sha, path);
+    try {
+      return Long.parseLong(executor.runGitCommand("cat-file", "-s", sha + ":" + path).trim());
+    } finally {
+      operation.end();
+    }
+  }
+
+  /**
+   * Reads a range of bytes of a file at a specific commit.
+   * 
+   * The content is streamed from git: the bytes before the range are skipped
+   * without being buffered and git is stopped as soon as the range is read, 
+   * so the rest of the file is never transferred.
+   * 
+   * @param sha The SHA of the commit in which we are interested.
+   * @param path The path of the file.
+   * @param offset The offset of the first byte to read.
+   * @param length The maximum number of bytes to read.
+   * 
+   * @return The bytes in the range. Fewer than <code>length</code> bytes are 
+   * returned if the range extends past the end of the file.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public byte[] readRange(String sha, String path, long offset, int length) 
+      throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("readRange", sha, path);
+    try {
+      GitProcess process = executor.startGitCommand("cat-file", "blob", sha + ":" + path);
+      try {
+        InputStream content = process.getInputStream();
+        long skipped = 0;
+        while (skipped < offset) {
+          long crtSkipped = content.skip(offset - skipped);
+          if (crtSkipped <= 0) {
+            if (content.read() == -1) {
+              break;
+            }
+            crtSkipped = 1;
+          }
+          skipped += crtSkipped;
+        }
+        byte[] range = ByteStreams.toByteArray(ByteStreams.limit(content, length));
+        if (range.length < length) {
+          // The end of the output was reached, check that git did not fail.
+          process.waitForSuccess();
+        }
+        return range;
+      } finally {
+        process.close();
+      }
+    } finally {
+      operation.end();
+    }
+  }
+
+  /**
+   * Reads the content of many files at a specific commit.
+   * 
+   * All the paths are resolved in a single walk of the commit trees and all
+   * the blobs are then read in a single pipelined exchange with git.
+   * 
+   * @param sha The SHA of the commit in which we are interested.
+   * @param paths The paths of the files that we want to read.
+   * 
+   * @return A map from each path to the content of the file, in the order of
+   * the given paths. The content is <code>null</code> if there is no file at 
+   * that path.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public Map<String, String> readFiles(String sha, Collection<String> paths) 
+      throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("readFiles", sha, null);
+    try {
+      final Map<String, String> contents = Maps.newLinkedHashMap();
+      for (String path : paths) {
+        contents.put(path, null);
+      }
+      if (contents.isEmpty()) {
+        return contents;
+      }
+    
+      Map<String, String> blobShas = resolveBlobs(sha, contents.keySet());
+      final List<String> pathsToRead = Lists.newArrayList(blobShas.keySet());
+      CatFileBatch batch = new CatFileBatch(executor);
+      try {
+        batch.readAll(Lists.newArrayList(blobShas.values()), new CatFileBatch.ObjectHandler() {
+          int index = 0;
+          @Override
+          public void objectRead(String blobSha, long size, InputStream content) throws IOException {
+            String path = pathsToRead.get(index++);
+            if (size >= 0) {
+              byte[] bytes = new byte[(int) size];
+              ByteStreams.readFully(content, bytes);
+              contents.put(path, new String(bytes, Charsets.UTF_8));
+            }
+          }
+        });
+      } finally {
+        batch.close();
+      }
+      return contents;
+    } finally {
+      operation.end();
+    }
+  }
+
+  /**
+   * Resolves the SHAs of the blobs at the given paths in a single walk of 
+   * the commit trees.
+   * 
+   * @param sha The SHA of the commit.
+   * @param paths The paths of the files.
+   * 
+   * @return A map from the paths of the existing files to the SHAs of their blobs.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private Map<String, String> resolveBlobs(String sha, Collection<String> paths) 
+      throws IOException, InterruptedException {
+    String[] args = new String[paths.size() + 3];
+    args[0] = "-z";
+    args[1] = sha;
+    args[2] = "--";
+    int i = 3;
+    for (String path : paths) {
+      args[i++] = path;
+    }
+    String lsTreeOutput = executor.runGitCommand("ls-tree", args);
+    Map<String, String> blobShas = Maps.newLinkedHashMap();
+    for (String entry : Splitter.on('\0').omitEmptyStrings().split(lsTreeOutput)) {
+      int pathStart = entry.indexOf('\t');
+      String[] details = entry.substring(0, pathStart).split(" ");
+      String path = entry.substring(pathStart + 1);
+      // Directories and submodules are not files.
+      if (details[1].equals("blob") && paths.contains(path)) {
+        blobShas.put(path, details[2]);
+      }
+    }
+    return blobShas;
+  }
+
+  /**
+   * Returns a snapshot of the repository at a given commit, which indexes
+   * the paths in the commit.
+   * 
+   * @param sha The SHA of the commit.
+   * 
+   * @return The snapshot.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public RepositorySnapshot snapshot(String sha) throws IOException, InterruptedException {
+    return new RepositorySnapshot(this, executor, sha, getRootTreeSha(sha));
+  }
+
+  /**
+   * Returns a snapshot of the repository at the latest commit on a branch.
+   * 
+   * The snapshot of every branch is kept and, when the branch advances, the 
+   * new snapshot is derived from the previous one.
+   * 
+   * @param branch The name of the branch.
+   * 
+   * @return The snapshot, or <code>null</code> if the branch does not exist.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public RepositorySnapshot getBranchSnapshot(String branch) throws IOException, InterruptedException {
+    String headSha = getLatestCommitSha(branch);
+    if (headSha == null) {
+      branchSnapshots.remove(branch);
+      return null;
+    }
+    RepositorySnapshot snapshot = branchSnapshots.get(branch);
+    if (snapshot == null) {
+      snapshot = snapshot(headSha);
+    } else if (!snapshot.getCommitSha().equals(headSha)) {
+      snapshot = snapshot.advanceTo(headSha);
+    }
+    branchSnapshots.put(branch, snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Saves the parsed commits and the branch snapshots to a file, from which
+   * a later process can start with warm caches.
+   * 
+   * @param file The file.
+   * 
+   * @throws IOException
+   */
+  public void saveCache(File file) throws IOException {
+    WarmStartCache.save(file, commitGraph.getCachedCommits(), 
+        Maps.newHashMap(branchSnapshots));
+  }
+
+  /**
+   * Loads the caches saved by {@link #saveCache(File)}.
+   * 
+   * The branch snapshots are validated against the current branch heads: the
+   * ones of branches that advanced since are advanced lazily, and the ones of
+   * deleted branches or of garbage-collected commits are dropped.
+   * 
+   * @param file The file.
+   * 
+   * @return <code>false</code> if the file does not exist or is corrupt.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public boolean loadCache(File file) throws IOException, InterruptedException {
+    if (!file.isFile()) {
+      return false;
+    }
+    WarmStartCache cache;
+    try {
+      cache = WarmStartCache.load(file, this, executor);
+    } catch (IOException e) {
+      return false;
+    }
+    for (GitCommit commit : cache.getCommits()) {
+      commitGraph.addCommit(commit);
+    }
+
+    String refsOutput = executor.runGitCommand("for-each-ref", 
+        "--format=%(objectname) %(refname:short)", "refs/heads/");
+    Map<String, String> heads = Maps.newHashMap();
+    for (String line : splitInLines(refsOutput)) {
+      int separatorIndex = line.indexOf(' ');
+      if (separatorIndex > 0) {
+        heads.put(line.substring(separatorIndex + 1), line.substring(0, separatorIndex));
+      }
+    }
+    Map<String, RepositorySnapshot> staleSnapshots = Maps.newHashMap();
+    for (Map.Entry<String, RepositorySnapshot> branchSnapshot : cache.getSnapshots().entrySet()) {
+      String branch = branchSnapshot.getKey();
+      RepositorySnapshot snapshot = branchSnapshot.getValue();
+      String headSha = heads.get(branch);
+      if (headSha == null) {
+        continue;
+      }
+      if (headSha.equals(snapshot.getCommitSha())) {
+        for (GitTreeEntry entry : snapshot.getIndexedEntries().values()) {
+          if (!DiffEntry.GITLINK_MODE.equals(entry.getMode())) {
+            knownObjects.put(entry.getSha(), Boolean.TRUE);
+          }
+        }
+        branchSnapshots.put(branch, snapshot);
+      } else {
+        staleSnapshots.put(branch, snapshot);
+      }
+    }
+
+    if (!staleSnapshots.isEmpty()) {
+      // The old commits are needed to advance the snapshots.
+      StringBuilder input = new StringBuilder();
+      for (RepositorySnapshot snapshot : staleSnapshots.values()) {
+        input.append(snapshot.getCommitSha()).append('\n');
+      }
+      String output = executor.pipeIntoGitCommand(input.toString(), "cat-file", 
+          "--batch-check=%(objectname) %(objecttype)");
+      Set<String> existingCommits = Sets.newHashSet();
+      for (String line : splitInLines(output)) {
+        if (line.endsWith(" commit")) {
+          existingCommits.add(line.substring(0, line.indexOf(' ')));
+        }
+      }
+      for (Map.Entry<String, RepositorySnapshot> branchSnapshot : staleSnapshots.entrySet()) {
+        if (existingCommits.contains(branchSnapshot.getValue().getCommitSha())) {
+          branchSnapshots.put(branchSnapshot.getKey(), branchSnapshot.getValue());
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Saves the caches to a file periodically, and when the JVM exits.
+   * 
+   * @param file The file.
+   * @param period The period between two saves.
+   * @param unit The unit of the period.
+   * 
+   * @return An object that stops the periodic saves when closed, after a last 
+   * save.
+   */
+  public Closeable persistCache(final File file, long period, TimeUnit unit) {
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("gitj-cache-saver").setDaemon(true).build());
+    final Runnable save = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          saveCache(file);
+        } catch (IOException e) {
+          // The previous file is kept.
+        }
+      }
+    };
+    scheduler.scheduleWithFixedDelay(save, period, period, unit);
+    final Thread shutdownHook = new Thread(save, "gitj-cache-saver-shutdown");
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+    return new Closeable() {
+      @Override
+      public void close() throws IOException {
+        scheduler.shutdownNow();
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        saveCache(file);
+      }
+    };
+  }
+
+  /**
+   * Writes the files in a directory of a commit to a directory on disk.
+   * 
+   * @param sha The SHA of the commit.
+   * @param dirPath The path of the directory in the commit, empty for the root.
+   * @param target The directory on disk.
+   * 
+   * @return The manifest of the exported files and throughput metrics.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public TreeExport exportTree(String sha, String dirPath, Path target) 
+      throws IOException, InterruptedException {
+    return exportTree(sha, dirPath, target, null);
+  }
+
+  /**
+   * Updates a directory on disk previously exported from a commit to match
+   * the files of a directory of another commit.
+   * 
+   * Only the files whose content or mode differ from the manifest of the previous 
+   * export are rewritten, and the files that are not present anymore are deleted. 
+   * The target directory is expected to be unchanged since the previous export.
+   * 
+   * @param sha The SHA of the commit.
+   * @param dirPath The path of the directory in the commit, empty for the root.
+   * @param target The directory on disk.
+   * @param previousExport The result of the previous export to the same directory, 
+   * or <code>null</code> to write all the files.
+   * 
+   * @return The manifest of the exported files and throughput metrics.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public TreeExport exportTree(String sha, String dirPath, Path target, TreeExport previousExport) 
+      throws IOException, InterruptedException {
+    int writerThreads = Runtime.getRuntime().availableProcessors();
+    return new TreeExporter(executor, writerThreads).export(sha, dirPath, target, previousExport);
+  }
+
+  /**
+   * Lists the directory contents on a given branch.
+   * 
+   * @param sha The SHA of the commit at on which we want to list the folder entries.
+   * @param dirPath The path to the directory.
+   * 
+   * @return The list of directory entries.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public List<String> listFiles(String sha, String dirPath) throws IOException, InterruptedException {
+    GitEvents.Operation operation = GitEvents.beginOperation("listFiles", sha, dirPath);
+    try {
+      String fileList = executor.runGitCommand("ls-tree", sha, dirPath + "/", "--name-only");
+      List<String> escapedFilePaths = Arrays.asList(splitInLines(fileList));
+      List<String> fileNames = Lists.newArrayListWithCapacity(escapedFilePaths.size());
+      for (String escapedFilePath: escapedFilePaths) {
+        String filePath = escapedFilePath;
+        filePath = Unescaper.unescapeCStringLiteral(escapedFilePath);
+        int nameStartIndex = filePath.lastIndexOf(File.separatorChar) + 1;
+        fileNames.add(filePath.substring(nameStartIndex));
+      }
+      return fileNames;
+    } finally {
+      operation.end();
+    }
+  }
+
+  /**
+   * Lists the directory contents at the head of a branch, with the last 
+   * commit that changed every entry.
+   * 
+   * Only the first-parent history of the branch is considered: the changes 
+   * brought by a merge are credited to the merge commit.
+   * 
+   * The last changes are answered from an index which is stored in the git 
+   * directory, so it survives restarts. When the branch advances, only the new
+   * commits are added to the index.
+   * 
+   * @param branch The name of the branch.
+   * @param dirPath The path to the directory.
+   * 
+   * @return The directory entries, or <code>null</code> if the branch does 
+   * not exist.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public List<ListingEntry> listFilesWithLastChange(String branch, String dirPath) 
+      throws IOException, InterruptedException {
+    String headSha = getLatestCommitSha(branch);
+    if (headSha == null) {
+      return null;
+    }
+    List<String> fileNames = listFiles(headSha, dirPath);
+    String prefix = dirPath.endsWith("/") ? dirPath : dirPath + "/";
+    List<String> lastChanges = Lists.newArrayListWithCapacity(fileNames.size());
+    LastChangeIndex index = getLastChangeIndex(branch);
+    synchronized (index) {
+      index.update(headSha);
+      for (String fileName : fileNames) {
+        lastChanges.add(index.getLastChange(prefix + fileName));
+      }
+    }
+    
+    Map<String, GitCommit> commits = commitGraph.getCommits(
+        Collections2.filter(lastChanges, Predicates.notNull()));
+    List<ListingEntry> entries = Lists.newArrayListWithCapacity(fileNames.size());
+    for (int i = 0; i < fileNames.size(); i++) {
+      String lastChange = lastChanges.get(i);
+      entries.add(new ListingEntry(fileNames.get(i), lastChange == null ? null : commits.get(lastChange)));
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the last-change index of a branch, loading it from disk if needed.
+   * 
+   * @param branch The name of the branch.
+   * 
+   * @return The index.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private LastChangeIndex getLastChangeIndex(String branch) throws IOException, InterruptedException {
+    LastChangeIndex index = lastChangeIndexes.get(branch);
+    if (index == null) {
+      File gitDir = new File(executor.runGitCommand("rev-parse", "--absolute-git-dir").trim());
+      // Branch names may contain slashes.
+      String fileName = BaseEncoding.base16().lowerCase().encode(branch.getBytes(Charsets.UTF_8));
+      index = new LastChangeIndex(executor, new File(gitDir, "gitj/last-change/" + fileName));
+      LastChangeIndex existingIndex = lastChangeIndexes.putIfAbsent(branch, index);
+      if (existingIndex != null) {
+        index = existingIndex;
+      }
+    }
+    return index;
   }
 }
@@ -1,9 +1,16 @@
 package ctalau.github.gitj;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * Representation of a Git tree object.
@@ -63,6 +70,45 @@ public class GitTree {
     return sha;
   }
   
+  /**
+   * Return the names of the entries of the tree.
+   *
+   * @return The names of the entries.
+   */
+  public Set<String> getEntryNames() {
+    return Collections.unmodifiableSet(entries.keySet());
+  }
+
+  /**
+   * Return the mode of an entry: "100644", "040000", etc.
+   *
+   * @param name The name of the entry.
+   * @return The mode of the entry.
+   */
+  public String getEntryMode(String name) {
+    String mode = null;
+    String entry = entries.get(name);
+    if (entry != null) {
+      mode = entry.substring(0, entry.indexOf(' '));
+    }
+    return mode;
+  }
+
+  /**
+   * Return the type of an entry.
+   *
+   * @param name The name of the entry.
+   * @return The type of the entry.
+   */
+  public EntryType getEntryType(String name) {
+    EntryType type = null;
+    String entry = entries.get(name);
+    if (entry != null) {
+      type = entry.split(" ")[1].equals("tree") ? EntryType.TREE : EntryType.BLOB;
+    }
+    return type;
+  }
+
   /**
    * Updates a new entry with the given details.
    * 
@@ -81,6 +127,32 @@ public class GitTree {
     entries.put(name, entryDescriptor);
   }
 
+  /**
+   * Updates an entry to point to an existing object, keeping its mode. This 
+   * is how executable files, symbolic links and submodules are moved.
+   * 
+   * @param name The name of the entry.
+   * @param mode The mode of the entry: "100644", "040000", etc.
+   * @param sha The SHA of the object.
+   */
+  public void updateEntry(String name, String mode, String sha) {
+    String escapedName;
+    if (entries.containsKey(name)) {
+      escapedName = entries.get(name).split("\t")[1];
+    } else {
+      escapedName = name;
+    }
+    String type;
+    if (mode.equals("040000")) {
+      type = "tree";
+    } else if (mode.equals(DiffEntry.GITLINK_MODE)) {
+      type = "commit";
+    } else {
+      type = "blob";
+    }
+    entries.put(name, mode + " " + type + " " + sha + "\t" + escapedName);
+  }
+
   /**
    * Create an entry descriptor.
    * 
@@ -103,6 +175,33 @@ public class GitTree {
   }
 
 
+  /**
+   * Computes the SHA that the tree object would have once written, without
+   * running git.
+   * 
+   * @return The SHA of the tree.
+   */
+  public String computeSha() {
+    // Git sorts the entries by name, as if the subtree names ended with a slash.
+    Map<byte[], String> sortedEntries = new TreeMap<byte[], String>(
+        UnsignedBytes.lexicographicalComparator());
+    for (String name : entries.keySet()) {
+      String sortKey = getEntryType(name) == EntryType.TREE ? name + "/" : name;
+      sortedEntries.put(sortKey.getBytes(Charsets.UTF_8), name);
+    }
+
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (String name : sortedEntries.values()) {
+      String mode = getEntryMode(name).replaceFirst("^0+", "");
+      byte[] header = (mode + " " + name).getBytes(Charsets.UTF_8);
+      content.write(header, 0, header.length);
+      content.write(0);
+      byte[] sha = BaseEncoding.base16().lowerCase().decode(getEntrySha(name));
+      content.write(sha, 0, sha.length);
+    }
+    return ObjectHasher.hashObject("tree", content.toByteArray());
+  }
+
   /**
    * Returns a string representation of the Git tree.
    */
@@ -0,0 +1,71 @@
+package ctalau.github.gitj;
+
+import ctalau.github.gitj.GitTree.EntryType;
+
+/**
+ * An entry of a Git tree: a file or a directory.
+ *
+ * @author ctalau
+ */
+public class GitTreeEntry {
+  /**
+   * The mode of the entry: "100644", "040000", etc.
+   */
+  private final String mode;
+
+  /**
+   * The SHA of the blob or tree.
+   */
+  private final String sha;
+
+  /**
+   * Constructor.
+   *
+   * @param mode The mode of the entry.
+   * @param sha The SHA of the blob or tree.
+   */
+  public GitTreeEntry(String mode, String sha) {
+    this.mode = mode;
+    this.sha = sha;
+  }
+
+  /**
+   * @return The mode of the entry: "100644", "040000", etc.
+   */
+  public String getMode() {
+    return mode;
+  }
+
+  /**
+   * @return The SHA of the blob or tree.
+   */
+  public String getSha() {
+    return sha;
+  }
+
+  /**
+   * @return The type of the entry.
+   */
+  public EntryType getType() {
+    return mode.equals("040000") ? EntryType.TREE : EntryType.BLOB;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof GitTreeEntry)) {
+      return false;
+    }
+    GitTreeEntry other = (GitTreeEntry) obj;
+    return mode.equals(other.mode) && sha.equals(other.sha);
+  }
+
+  @Override
+  public int hashCode() {
+    return sha.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return mode + " " + sha;
+  }
+}
@@ -0,0 +1,227 @@
+package ctalau.github.gitj;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * The JFR events reported by {@link GitEvents}. This class is only loaded
+ * when JFR is available, and it is only compiled when the JDK has the
+ * <code>jdk.jfr</code> module: the <code>no-jfr</code> build profile leaves
+ * it out.
+ *
+ * @author ctalau
+ */
+class JfrEvents extends GitEvents.Recorder {
+  /**
+   * The maximum length of the arguments recorded for a process.
+   */
+  private static final int MAX_ARGUMENTS_LENGTH = 256;
+
+  /**
+   * A repository operation.
+   */
+  @Name("ctalau.github.gitj.Operation")
+  @Label("Git Repository Operation")
+  @Category("gitj")
+  @Description("A GitRepository operation and the git processes it started")
+  @Threshold("10 ms")
+  static class OperationEvent extends Event {
+    @Label("Operation")
+    String name;
+
+    @Label("Revision")
+    String revision;
+
+    @Label("Path")
+    String path;
+
+    @Label("Processes")
+    @Description("The number of git processes started by the operation")
+    int processCount;
+  }
+
+  /**
+   * A git process.
+   */
+  @Name("ctalau.github.gitj.Process")
+  @Label("Git Process")
+  @Category("gitj")
+  @Description("A git process, from the moment it is requested until it exits")
+  @Threshold("0 ms")
+  static class ProcessEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Arguments")
+    String arguments;
+
+    @Label("Operation")
+    @Description("The repository operation that started the process")
+    String operation;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Exit Code")
+    int exitCode;
+
+    @Label("Spawn Time")
+    @Description("The time spent waiting for the OS to start the process")
+    @Timespan
+    long spawnTime;
+
+    @Label("Execution Time")
+    @Description("The time from the start of the process until it exited")
+    @Timespan
+    long executionTime;
+  }
+
+  /**
+   * The operation in progress on every thread.
+   */
+  private static final ThreadLocal<OperationEvent> currentOperation =
+      new ThreadLocal<OperationEvent>();
+
+  /**
+   * Constructor, called by {@link GitEvents} through reflection.
+   */
+  JfrEvents() {
+  }
+
+  /**
+   * Starts an operation.
+   *
+   * @param name The name of the operation.
+   * @param revision The commit, tree or branch the operation applies to.
+   * @param path The path the operation applies to, or <code>null</code>.
+   *
+   * @return The operation, or <code>null</code> if the event is disabled.
+   */
+  @Override
+  GitEvents.Operation beginOperation(String name, String revision, String path) {
+    final OperationEvent event = new OperationEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.name = name;
+    event.revision = revision;
+    event.path = path;
+    // Operations may call each other, in which case the outer one is kept.
+    final OperationEvent outerEvent = currentOperation.get();
+    currentOperation.set(outerEvent != null ? outerEvent : event);
+    event.begin();
+    return new GitEvents.Operation() {
+      @Override
+      void end() {
+        event.end();
+        if (outerEvent == null) {
+          currentOperation.remove();
+        }
+        if (event.shouldCommit()) {
+          event.commit();
+        }
+      }
+    };
+  }
+
+  /**
+   * Starts a git process.
+   *
+   * @param command The git command name.
+   * @param args The arguments of that command.
+   *
+   * @return The process run, or <code>null</code> if the event is disabled.
+   */
+  @Override
+  GitEvents.ProcessRun beginProcess(String command, String[] args) {
+    OperationEvent operation = currentOperation.get();
+    if (operation != null) {
+      operation.processCount++;
+    }
+    final ProcessEvent event = new ProcessEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.command = command;
+    String arguments = Joiner.on(' ').join(args);
+    event.arguments = arguments.length() > MAX_ARGUMENTS_LENGTH
+        ? arguments.substring(0, MAX_ARGUMENTS_LENGTH) + "..." : arguments;
+    event.operation = operation != null ? operation.name : null;
+    final long beginNanos = System.nanoTime();
+    event.begin();
+    return new GitEvents.ProcessRun() {
+      /**
+       * The moment when the process was started.
+       */
+      private long startedNanos = beginNanos;
+
+      /**
+       * The counted standard input, or <code>null</code>.
+       */
+      private CountingOutputStream input;
+
+      /**
+       * The counted standard output, or <code>null</code>.
+       */
+      private CountingInputStream output;
+
+      /**
+       * Whether the process ended.
+       */
+      private boolean ended;
+
+      @Override
+      void started() {
+        startedNanos = System.nanoTime();
+      }
+
+      @Override
+      OutputStream countInput(OutputStream stream) {
+        input = new CountingOutputStream(stream);
+        return input;
+      }
+
+      @Override
+      InputStream countOutput(InputStream stream) {
+        output = new CountingInputStream(stream);
+        return output;
+      }
+
+      @Override
+      synchronized void end(int exitCode) {
+        if (ended) {
+          return;
+        }
+        ended = true;
+        event.end();
+        if (event.shouldCommit()) {
+          long endNanos = System.nanoTime();
+          event.spawnTime = startedNanos - beginNanos;
+          event.executionTime = endNanos - startedNanos;
+          event.bytesWritten = input != null ? input.getCount() : 0;
+          event.bytesRead = output != null ? output.getCount() : 0;
+          event.exitCode = exitCode;
+          event.commit();
+        }
+      }
+    };
+  }
+}
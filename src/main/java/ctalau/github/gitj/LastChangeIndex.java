@@ -0,0 +1,338 @@
+package ctalau.github.gitj;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+
+import ctalau.github.gitj.GitCommandExecutor.ProcessExitException;
+
+/**
+ * A persistent index of the last commit that changed every file and
+ * directory at the head of a branch.
+ *
+ * The index is built by walking the history backwards only until every path
+ * is resolved. When the branch advances, only the new commits are walked.
+ *
+ * Only the first-parent history of the branch is walked, and a merge is
+ * compared with its first parent. So the changes brought by a merge are
+ * credited to the merge commit, and the commits of the merged branch are
+ * never credited, even the ones whose changes were discarded by the merge.
+ * After every update, the index is saved to a compressed file, in which every
+ * commit SHA is stored once.
+ *
+ * @author ctalau
+ */
+class LastChangeIndex {
+  /**
+   * The version of the file format.
+   */
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * The byte that starts a commit SHA in the log output.
+   */
+  private static final char COMMIT_MARKER = '\u0001';
+
+  /**
+   * The git command executor.
+   */
+  private final GitCommandExecutor executor;
+
+  /**
+   * The file in which the index is saved.
+   */
+  private final File file;
+
+  /**
+   * The indexed commit, or <code>null</code> if nothing is indexed yet.
+   */
+  private String commitSha;
+
+  /**
+   * The last commit that changed every path.
+   */
+  private final Map<String, String> lastChanges = Maps.newHashMap();
+
+  /**
+   * Constructor. The index is loaded from its file, if it exists.
+   *
+   * @param executor The git command executor.
+   * @param file The file in which the index is saved.
+   */
+  LastChangeIndex(GitCommandExecutor executor, File file) {
+    this.executor = executor;
+    this.file = file;
+    if (file.exists()) {
+      try {
+        load();
+      } catch (IOException e) {
+        // Start from scratch if the file is corrupt.
+        commitSha = null;
+        lastChanges.clear();
+      }
+    }
+  }
+
+  /**
+   * @return The indexed commit, or <code>null</code> if nothing is indexed yet.
+   */
+  synchronized String getCommitSha() {
+    return commitSha;
+  }
+
+  /**
+   * Returns the last commit that changed a path.
+   *
+   * @param path The path of a file or directory.
+   *
+   * @return The SHA of the commit, or <code>null</code> if the path is unknown.
+   */
+  synchronized String getLastChange(String path) {
+    return lastChanges.get(path);
+  }
+
+  /**
+   * Brings the index up to date with a new head commit and saves it.
+   *
+   * @param headSha The new head commit.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  synchronized void update(String headSha) throws IOException, InterruptedException {
+    if (headSha.equals(commitSha)) {
+      return;
+    }
+    boolean extended = false;
+    if (commitSha != null && isAncestor(commitSha, headSha)) {
+      Map<String, String> newChanges = Maps.newHashMap();
+      String baseSha = walkHistory(Lists.newArrayList(headSha, "^" + commitSha), null, newChanges);
+      // The indexed commit may have been merged into another branch, whose
+      // first-parent history is different.
+      if (commitSha.equals(baseSha)) {
+        lastChanges.putAll(newChanges);
+        // The entries of the paths created and deleted in the new commits are
+        // kept, but they are never looked up.
+        String deleted = executor.runGitCommand("diff-tree", "-r", "-t", "--name-only",
+            "--diff-filter=D", "-z", commitSha, headSha);
+        for (String path : Splitter.on('\0').omitEmptyStrings().split(deleted)) {
+          lastChanges.remove(path);
+        }
+        extended = true;
+      }
+    }
+    if (!extended) {
+      lastChanges.clear();
+      String paths = executor.runGitCommand("ls-tree", "-r", "-t", "--name-only", "-z", headSha);
+      Set<String> unresolved = Sets.newHashSet(Splitter.on('\0').omitEmptyStrings().split(paths));
+      if (!unresolved.isEmpty()) {
+        walkHistory(Lists.newArrayList(headSha), unresolved, lastChanges);
+      }
+    }
+    commitSha = headSha;
+    save();
+  }
+
+  /**
+   * Walks the first-parent history from the newest commit and records the
+   * first commit that changed every path or something under it.
+   *
+   * @param revisions The revisions to walk.
+   * @param unresolved If not <code>null</code>, only these paths are recorded
+   * and the walk stops when all of them are.
+   * @param changes The map in which the commits are recorded, by path.
+   *
+   * @return The first parent of the last commit walked, or <code>null</code>
+   * if there is none or if the walk stopped early.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private String walkHistory(List<String> revisions, Set<String> unresolved,
+      Map<String, String> changes) throws IOException, InterruptedException {
+    // Merges are compared with their first parent, like the other commits.
+    List<String> args = Lists.newArrayList("-z", "--format=%x01%H %P", "--name-only",
+        "--no-renames", "--first-parent", "-m");
+    args.addAll(revisions);
+    args.add("--");
+    GitProcess process = executor.startGitCommand("log", args.toArray(new String[args.size()]));
+    try {
+      InputStream output = new BufferedInputStream(process.getInputStream());
+      Set<String> seen = Sets.newHashSet();
+      String crtCommit = null;
+      String crtFirstParent = null;
+      String token;
+      while ((token = readToken(output)) != null) {
+        if (token.isEmpty()) {
+          continue;
+        } else if (token.charAt(0) == COMMIT_MARKER) {
+          if (unresolved != null && unresolved.isEmpty()) {
+            return null;
+          }
+          // The SHA of the commit and the SHAs of its parents.
+          List<String> shas = Splitter.on(' ').omitEmptyStrings().splitToList(token.substring(1));
+          crtCommit = shas.get(0);
+          crtFirstParent = shas.size() > 1 ? shas.get(1) : null;
+          continue;
+        }
+        // The path and its parent directories, until one already seen.
+        String path = token;
+        while (seen.add(path)) {
+          if (unresolved == null || unresolved.remove(path)) {
+            changes.put(path, crtCommit);
+          }
+          int separatorIndex = path.lastIndexOf('/');
+          if (separatorIndex < 0) {
+            break;
+          }
+          path = path.substring(0, separatorIndex);
+        }
+      }
+      process.waitForSuccess();
+      return crtFirstParent;
+    } finally {
+      process.close();
+    }
+  }
+
+  /**
+   * Reads a NUL-terminated token of the log output.
+   *
+   * @param output The log output.
+   *
+   * @return The token without the new lines that precede it, or
+   * <code>null</code> at the end of the output.
+   *
+   * @throws IOException
+   */
+  private static String readToken(InputStream output) throws IOException {
+    ByteArrayOutputStream token = new ByteArrayOutputStream();
+    int b;
+    while ((b = output.read()) != 0) {
+      if (b == -1) {
+        return token.size() == 0 ? null : token.toString(Charsets.UTF_8.name());
+      }
+      if (b != '\n' || token.size() != 0) {
+        token.write(b);
+      }
+    }
+    return token.toString(Charsets.UTF_8.name());
+  }
+
+  /**
+   * Checks whether a commit is an ancestor of another one.
+   *
+   * @param ancestorSha The potential ancestor.
+   * @param descendantSha The potential descendant.
+   *
+   * @return <code>true</code> if the first commit is an ancestor of the second.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private boolean isAncestor(String ancestorSha, String descendantSha)
+      throws IOException, InterruptedException {
+    try {
+      executor.runGitCommand("merge-base", "--is-ancestor", ancestorSha, descendantSha);
+      return true;
+    } catch (ProcessExitException e) {
+      // Not an ancestor, or the old commit was garbage collected.
+      return false;
+    }
+  }
+
+  /**
+   * Saves the index to its file, atomically.
+   *
+   * @throws IOException
+   */
+  private void save() throws IOException {
+    file.getParentFile().mkdirs();
+    Map<String, Integer> commitIndexes = Maps.newLinkedHashMap();
+    for (String sha : lastChanges.values()) {
+      if (!commitIndexes.containsKey(sha)) {
+        commitIndexes.put(sha, commitIndexes.size());
+      }
+    }
+    // Sorted paths share prefixes, which compress well.
+    List<String> paths = Lists.newArrayList(lastChanges.keySet());
+    Collections.sort(paths);
+
+    File tmpFile = new File(file.getPath() + ".tmp");
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+        new GZIPOutputStream(new FileOutputStream(tmpFile))));
+    try {
+      output.writeInt(FORMAT_VERSION);
+      output.writeUTF(commitSha);
+      output.writeInt(commitIndexes.size());
+      for (String sha : commitIndexes.keySet()) {
+        output.write(BaseEncoding.base16().lowerCase().decode(sha));
+      }
+      output.writeInt(paths.size());
+      for (String path : paths) {
+        output.writeUTF(path);
+        output.writeInt(commitIndexes.get(lastChanges.get(path)));
+      }
+    } finally {
+      output.close();
+    }
+    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Loads the index from its file.
+   *
+   * @throws IOException
+   */
+  private void load() throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(
+        new GZIPInputStream(new FileInputStream(file))));
+    try {
+      if (input.readInt() != FORMAT_VERSION) {
+        throw new IOException("Unsupported index version: " + file);
+      }
+      String indexedSha = input.readUTF();
+      String[] commits = new String[input.readInt()];
+      byte[] shaBytes = new byte[20];
+      for (int i = 0; i < commits.length; i++) {
+        input.readFully(shaBytes);
+        commits[i] = BaseEncoding.base16().lowerCase().encode(shaBytes);
+      }
+      int pathCount = input.readInt();
+      for (int i = 0; i < pathCount; i++) {
+        String path = input.readUTF();
+        int commitIndex = input.readInt();
+        if (commitIndex < 0 || commitIndex >= commits.length) {
+          throw new IOException("Corrupt index: " + file);
+        }
+        lastChanges.put(path, commits[commitIndex]);
+      }
+      commitSha = indexedSha;
+    } finally {
+      input.close();
+    }
+  }
+}
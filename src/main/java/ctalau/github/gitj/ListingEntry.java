@@ -0,0 +1,49 @@
+package ctalau.github.gitj;
+
+/**
+ * An entry of a directory listing, with the last commit that changed it.
+ *
+ * @author ctalau
+ */
+public class ListingEntry {
+  /**
+   * The name of the file or directory.
+   */
+  private final String name;
+
+  /**
+   * The last commit that changed the file or something in the directory.
+   */
+  private final GitCommit lastCommit;
+
+  /**
+   * Constructor.
+   *
+   * @param name The name of the file or directory.
+   * @param lastCommit The last commit that changed it.
+   */
+  public ListingEntry(String name, GitCommit lastCommit) {
+    this.name = name;
+    this.lastCommit = lastCommit;
+  }
+
+  /**
+   * @return The name of the file or directory.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return The last commit that changed the file or something in the
+   * directory, or <code>null</code> if it is not known.
+   */
+  public GitCommit getLastCommit() {
+    return lastCommit;
+  }
+
+  @Override
+  public String toString() {
+    return name + " " + (lastCommit == null ? null : lastCommit.getSha());
+  }
+}
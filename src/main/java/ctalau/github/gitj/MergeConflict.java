@@ -0,0 +1,111 @@
+package ctalau.github.gitj;
+
+/**
+ * A path that could not be merged automatically.
+ *
+ * @author ctalau
+ */
+public class MergeConflict {
+  /**
+   * The kind of conflict.
+   */
+  public static enum ConflictType {
+    /**
+     * The file was changed on both sides, in overlapping lines or in a 
+     * binary file.
+     */
+    CONTENT,
+    /**
+     * The file was changed on one side and deleted on the other one.
+     */
+    MODIFY_DELETE,
+    /**
+     * The entry was changed on both sides to different kinds of entries 
+     * (file, directory, symbolic link or submodule) or modes.
+     */
+    TYPE
+  }
+
+  /**
+   * The kind of conflict.
+   */
+  private final ConflictType conflictType;
+
+  /**
+   * The path of the entry.
+   */
+  private final String path;
+
+  /**
+   * The SHA of the entry in the merge base, or <code>null</code> if missing.
+   */
+  private final String baseSha;
+
+  /**
+   * The SHA of the entry on our side, or <code>null</code> if missing.
+   */
+  private final String oursSha;
+
+  /**
+   * The SHA of the entry on their side, or <code>null</code> if missing.
+   */
+  private final String theirsSha;
+
+  /**
+   * Constructor.
+   *
+   * @param conflictType The kind of conflict.
+   * @param path The path of the entry.
+   * @param baseSha The SHA of the entry in the merge base.
+   * @param oursSha The SHA of the entry on our side.
+   * @param theirsSha The SHA of the entry on their side.
+   */
+  public MergeConflict(ConflictType conflictType, String path, String baseSha, 
+      String oursSha, String theirsSha) {
+    this.conflictType = conflictType;
+    this.path = path;
+    this.baseSha = baseSha;
+    this.oursSha = oursSha;
+    this.theirsSha = theirsSha;
+  }
+
+  /**
+   * @return The kind of conflict.
+   */
+  public ConflictType getConflictType() {
+    return conflictType;
+  }
+
+  /**
+   * @return The path of the entry.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return The SHA of the entry in the merge base, or <code>null</code> if missing.
+   */
+  public String getBaseSha() {
+    return baseSha;
+  }
+
+  /**
+   * @return The SHA of the entry on our side, or <code>null</code> if missing.
+   */
+  public String getOursSha() {
+    return oursSha;
+  }
+
+  /**
+   * @return The SHA of the entry on their side, or <code>null</code> if missing.
+   */
+  public String getTheirsSha() {
+    return theirsSha;
+  }
+
+  @Override
+  public String toString() {
+    return conflictType + " " + path;
+  }
+}
@@ -0,0 +1,61 @@
+package ctalau.github.gitj;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The result of merging two commits.
+ *
+ * @author ctalau
+ */
+public class MergeResult {
+  /**
+   * The SHA of the merge commit, or <code>null</code> if there are conflicts.
+   */
+  private final String commitSha;
+
+  /**
+   * The paths that could not be merged.
+   */
+  private final List<MergeConflict> conflicts;
+
+  /**
+   * Constructor.
+   *
+   * @param commitSha The SHA of the merge commit, or <code>null</code> if 
+   * there are conflicts.
+   * @param conflicts The paths that could not be merged.
+   */
+  public MergeResult(String commitSha, List<MergeConflict> conflicts) {
+    this.commitSha = commitSha;
+    this.conflicts = ImmutableList.copyOf(conflicts);
+  }
+
+  /**
+   * @return <code>true</code> if the commits were merged without conflicts.
+   */
+  public boolean isSuccessful() {
+    return conflicts.isEmpty();
+  }
+
+  /**
+   * @return The SHA of the merge commit, or <code>null</code> if there are 
+   * conflicts.
+   */
+  public String getCommitSha() {
+    return commitSha;
+  }
+
+  /**
+   * @return The paths that could not be merged, in the order of the tree walk.
+   */
+  public List<MergeConflict> getConflicts() {
+    return conflicts;
+  }
+
+  @Override
+  public String toString() {
+    return isSuccessful() ? commitSha : conflicts.toString();
+  }
+}
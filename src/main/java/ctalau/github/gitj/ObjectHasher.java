@@ -0,0 +1,39 @@
+package ctalau.github.gitj;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Computes the SHA of Git objects without running git.
+ *
+ * @author ctalau
+ */
+public class ObjectHasher {
+  /**
+   * Computes the SHA that a blob with the given content would have.
+   *
+   * @param content The content of the blob.
+   *
+   * @return The SHA of the blob.
+   */
+  public static String hashBlob(byte[] content) {
+    return hashObject("blob", content);
+  }
+
+  /**
+   * Computes the SHA of an object.
+   *
+   * @param type The object type: "blob", "tree" or "commit".
+   * @param content The content of the object.
+   *
+   * @return The SHA of the object.
+   */
+  public static String hashObject(String type, byte[] content) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putBytes((type + " " + content.length).getBytes(Charsets.US_ASCII));
+    hasher.putByte((byte) 0);
+    hasher.putBytes(content);
+    return hasher.hash().toString();
+  }
+}
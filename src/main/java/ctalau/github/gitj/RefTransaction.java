@@ -0,0 +1,275 @@
+package ctalau.github.gitj;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import ctalau.github.gitj.GitCommandExecutor.ProcessExitException;
+
+/**
+ * A set of branch updates applied all together or not at all.
+ *
+ * All the fast-forward checks are answered from a single batched ancestry query
+ * and all the updates are committed with a single
+ * <code>git update-ref --stdin</code> process.
+ *
+ * <pre>
+ * boolean committed = repository.newRefTransaction()
+ *     .update("release-1", newSha, oldSha)
+ *     .create("release-2", newSha)
+ *     .delete("release-0", otherSha)
+ *     .commit();
+ * </pre>
+ *
+ * @author ctalau
+ */
+public class RefTransaction {
+  /**
+   * The prefix of the branch refs.
+   */
+  private static final String HEADS_PREFIX = "refs/heads/";
+
+  /**
+   * A branch update.
+   */
+  private static class RefUpdate {
+    /**
+     * The name of the branch.
+     */
+    final String branch;
+
+    /**
+     * The new commit, or <code>null</code> to delete the branch.
+     */
+    final String newSha;
+
+    /**
+     * The expected current commit, or <code>null</code> if the branch should
+     * not exist.
+     */
+    final String oldSha;
+
+    /**
+     * Constructor.
+     *
+     * @param branch The name of the branch.
+     * @param newSha The new commit.
+     * @param oldSha The expected current commit.
+     */
+    RefUpdate(String branch, String newSha, String oldSha) {
+      this.branch = branch;
+      this.newSha = newSha;
+      this.oldSha = oldSha;
+    }
+  }
+
+  /**
+   * The repository.
+   */
+  private final GitRepository repository;
+
+  /**
+   * The git command executor.
+   */
+  private final GitCommandExecutor executor;
+
+  /**
+   * The commit graph used for the fast-forward checks.
+   */
+  private final CommitGraph commitGraph;
+
+  /**
+   * The updates in this transaction.
+   */
+  private final List<RefUpdate> updates = Lists.newArrayList();
+
+  /**
+   * The branches updated in this transaction.
+   */
+  private final Set<String> branches = Sets.newHashSet();
+
+  /**
+   * Constructor.
+   *
+   * @param repository The repository.
+   * @param executor The git command executor.
+   * @param commitGraph The commit graph used for the fast-forward checks.
+   */
+  RefTransaction(GitRepository repository, GitCommandExecutor executor, CommitGraph commitGraph) {
+    this.repository = repository;
+    this.executor = executor;
+    this.commitGraph = commitGraph;
+  }
+
+  /**
+   * Creates a branch which must not exist yet.
+   *
+   * @param branch The name of the branch.
+   * @param newSha The commit at which the branch should point.
+   *
+   * @return This transaction.
+   */
+  public RefTransaction create(String branch, String newSha) {
+    return add(new RefUpdate(branch, newSha, null));
+  }
+
+  /**
+   * Fast-forwards a branch.
+   *
+   * @param branch The name of the branch.
+   * @param newSha The new commit, which must be a descendant of the old one.
+   * @param expectedOldSha The commit at which the branch is expected to point.
+   *
+   * @return This transaction.
+   */
+  public RefTransaction update(String branch, String newSha, String expectedOldSha) {
+    return add(new RefUpdate(branch, newSha, expectedOldSha));
+  }
+
+  /**
+   * Deletes a branch.
+   *
+   * @param branch The name of the branch.
+   * @param expectedOldSha The commit at which the branch is expected to point.
+   *
+   * @return This transaction.
+   */
+  public RefTransaction delete(String branch, String expectedOldSha) {
+    return add(new RefUpdate(branch, null, expectedOldSha));
+  }
+
+  /**
+   * Adds an update to the transaction.
+   *
+   * @param update The update.
+   *
+   * @return This transaction.
+   */
+  private RefTransaction add(RefUpdate update) {
+    if (!branches.add(update.branch)) {
+      throw new IllegalArgumentException("Branch updated twice: " + update.branch);
+    }
+    updates.add(update);
+    return this;
+  }
+
+  /**
+   * Applies all the updates, or none of them.
+   *
+   * The transaction fails if a branch update is not a fast-forward or if a
+   * branch does not point to the expected commit.
+   *
+   * @return <code>true</code> if all the branches were updated.
+   *
+   * @throws IOException If the updates could not be applied for another
+   * reason, like a missing commit or an invalid branch name.
+   * @throws InterruptedException
+   */
+  public boolean commit() throws IOException, InterruptedException {
+    if (!checkFastForwards()) {
+      return false;
+    }
+
+    StringBuilder input = new StringBuilder();
+    for (RefUpdate update : updates) {
+      String ref = HEADS_PREFIX + update.branch;
+      if (update.newSha == null) {
+        input.append("delete ").append(ref).append(' ').append(update.oldSha);
+      } else if (update.oldSha == null) {
+        input.append("create ").append(ref).append(' ').append(update.newSha);
+      } else {
+        input.append("update ").append(ref).append(' ').append(update.newSha)
+            .append(' ').append(update.oldSha);
+      }
+      input.append('\n');
+    }
+
+    synchronized (repository) {
+      try {
+        executor.pipeIntoGitCommand(input.toString(), "update-ref", "--stdin");
+      } catch (ProcessExitException e) {
+        if (!matchExpectedValues()) {
+          return false;
+        }
+        throw e;
+      }
+      for (RefUpdate update : updates) {
+        repository.queueBranchChange(
+            new BranchChangeEvent(update.branch, update.oldSha, update.newSha));
+      }
+    }
+    repository.fireBranchChanges();
+    for (RefUpdate update : updates) {
+      repository.refreshContentIndex(update.branch);
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether all the branches point to the expected commits. Called
+   * after a failed update, to tell a concurrent change from other errors.
+   *
+   * @return <code>true</code> if every branch points to the expected commit,
+   * or does not exist if it is created.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private boolean matchExpectedValues() throws IOException, InterruptedException {
+    List<String> args = Lists.newArrayList("--format=%(refname) %(objectname)");
+    for (RefUpdate update : updates) {
+      args.add(HEADS_PREFIX + update.branch);
+    }
+    String output = executor.runGitCommand("for-each-ref", args.toArray(new String[args.size()]));
+    // The patterns also match the refs under the branches, as folders.
+    Map<String, String> values = Maps.newHashMap();
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(output)) {
+      int separatorIndex = line.lastIndexOf(' ');
+      values.put(line.substring(0, separatorIndex), line.substring(separatorIndex + 1));
+    }
+    for (RefUpdate update : updates) {
+      if (!Objects.equal(update.oldSha, values.get(HEADS_PREFIX + update.branch))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks that all the branch updates are fast-forwards.
+   *
+   * @return <code>true</code> if all the updates are fast-forwards.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private boolean checkFastForwards() throws IOException, InterruptedException {
+    List<String> tips = Lists.newArrayList();
+    List<String> bases = Lists.newArrayList();
+    for (RefUpdate update : updates) {
+      if (update.newSha != null && update.oldSha != null) {
+        tips.add(update.newSha);
+        bases.add(update.oldSha);
+      }
+    }
+    if (tips.isEmpty()) {
+      return true;
+    }
+    // Load the commits between the old and the new values at once.
+    commitGraph.loadParentsBetween(tips, bases);
+    for (RefUpdate update : updates) {
+      if (update.newSha != null && update.oldSha != null
+          && !commitGraph.isAncestor(update.oldSha, update.newSha)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,417 @@
+package ctalau.github.gitj;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import ctalau.github.gitj.GitTree.EntryType;
+
+/**
+ * The content of the repository at a given commit, with an index from paths
+ * to tree entries.
+ *
+ * The index is built lazily, one directory at a time, or entirely at once by
+ * {@link #buildFullIndex()}. Once a directory is indexed, resolving the paths
+ * in it does not run git anymore.
+ *
+ * When a branch advances, the snapshot of the new commit can be derived from
+ * the one of the old commit with {@link #advanceTo(String)}, which only
+ * re-indexes the changed paths.
+ *
+ * @author ctalau
+ */
+public class RepositorySnapshot {
+  /**
+   * The mode of a tree entry.
+   */
+  private static final String TREE_MODE = "040000";
+
+  /**
+   * The repository.
+   */
+  private final GitRepository repository;
+
+  /**
+   * The git command executor.
+   */
+  private final GitCommandExecutor executor;
+
+  /**
+   * The SHA of the commit.
+   */
+  private final String commitSha;
+
+  /**
+   * The indexed entries, by path. The root tree has the empty path.
+   */
+  private final Map<String, GitTreeEntry> entries;
+
+  /**
+   * The names of the entries of the indexed directories, by directory path.
+   */
+  private final Map<String, SortedSet<String>> children;
+
+  /**
+   * Whether all the paths in the commit are indexed.
+   */
+  private volatile boolean fullyIndexed;
+
+  /**
+   * Constructor.
+   *
+   * @param repository The repository.
+   * @param executor The git command executor.
+   * @param commitSha The SHA of the commit.
+   * @param treeSha The SHA of the root tree of the commit.
+   */
+  RepositorySnapshot(GitRepository repository, GitCommandExecutor executor,
+      String commitSha, String treeSha) {
+    this(repository, executor, commitSha,
+        new ConcurrentHashMap<String, GitTreeEntry>(),
+        new ConcurrentHashMap<String, SortedSet<String>>(), false);
+    entries.put("", new GitTreeEntry(TREE_MODE, treeSha));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param repository The repository.
+   * @param executor The git command executor.
+   * @param commitSha The SHA of the commit.
+   * @param entries The indexed entries.
+   * @param children The names of the entries of the indexed directories.
+   * @param fullyIndexed Whether all the paths are indexed.
+   */
+  private RepositorySnapshot(GitRepository repository, GitCommandExecutor executor,
+      String commitSha, Map<String, GitTreeEntry> entries,
+      Map<String, SortedSet<String>> children, boolean fullyIndexed) {
+    this.repository = repository;
+    this.executor = executor;
+    this.commitSha = commitSha;
+    this.entries = entries;
+    this.children = children;
+    this.fullyIndexed = fullyIndexed;
+  }
+
+  /**
+   * Recreates a snapshot from a previously saved index.
+   *
+   * @param repository The repository.
+   * @param executor The git command executor.
+   * @param commitSha The SHA of the commit.
+   * @param entries The indexed entries.
+   * @param children The names of the entries of the indexed directories.
+   * @param fullyIndexed Whether all the paths are indexed.
+   *
+   * @return The snapshot.
+   */
+  static RepositorySnapshot restore(GitRepository repository, GitCommandExecutor executor,
+      String commitSha, Map<String, GitTreeEntry> entries,
+      Map<String, SortedSet<String>> children, boolean fullyIndexed) {
+    return new RepositorySnapshot(repository, executor, commitSha,
+        new ConcurrentHashMap<String, GitTreeEntry>(entries),
+        new ConcurrentHashMap<String, SortedSet<String>>(children), fullyIndexed);
+  }
+
+  /**
+   * @return The SHA of the commit.
+   */
+  public String getCommitSha() {
+    return commitSha;
+  }
+
+  /**
+   * @return A copy of the indexed entries, by path.
+   */
+  synchronized Map<String, GitTreeEntry> getIndexedEntries() {
+    return Maps.newHashMap(entries);
+  }
+
+  /**
+   * @return A copy of the names of the entries of the indexed directories,
+   * by directory path.
+   */
+  synchronized Map<String, SortedSet<String>> getIndexedDirectories() {
+    return Maps.newHashMap(children);
+  }
+
+  /**
+   * @return <code>true</code> if all the paths in the commit are indexed.
+   */
+  boolean isFullyIndexed() {
+    return fullyIndexed;
+  }
+
+  /**
+   * Returns the tree entry at the given path.
+   *
+   * @param path The path of the file or directory.
+   *
+   * @return The entry, or <code>null</code> if there is nothing at that path.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public GitTreeEntry getEntry(String path) throws IOException, InterruptedException {
+    path = normalize(path);
+    GitTreeEntry entry = entries.get(path);
+    if (entry == null && !fullyIndexed && loadDirectory(getParentPath(path))) {
+      entry = entries.get(path);
+    }
+    return entry;
+  }
+
+  /**
+   * Checks whether there is a file or a directory at the given path.
+   *
+   * @param path The path.
+   *
+   * @return <code>true</code> if the path exists.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public boolean exists(String path) throws IOException, InterruptedException {
+    return getEntry(path) != null;
+  }
+
+  /**
+   * Reads the content of a file.
+   *
+   * @param path The path of the file.
+   *
+   * @return The content of the file.
+   *
+   * @throws FileNotFoundException If there is no file at that path.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public String readFile(String path) throws IOException, InterruptedException {
+    GitTreeEntry entry = getEntry(path);
+    if (entry == null || entry.getType() != EntryType.BLOB) {
+      throw new FileNotFoundException(path);
+    }
+    return executor.runGitCommand("cat-file", "blob", entry.getSha());
+  }
+
+  /**
+   * Lists the names of the entries of a directory, sorted by name.
+   *
+   * @param dirPath The path of the directory.
+   *
+   * @return The names of the entries, or an empty list if there is no directory
+   * at that path.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public List<String> listFiles(String dirPath) throws IOException, InterruptedException {
+    dirPath = normalize(dirPath);
+    List<String> names = ImmutableList.of();
+    if (loadDirectory(dirPath)) {
+      names = ImmutableList.copyOf(children.get(dirPath));
+    }
+    return names;
+  }
+
+  /**
+   * Indexes all the paths of the commit at once, using a single git process.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public synchronized void buildFullIndex() throws IOException, InterruptedException {
+    if (fullyIndexed) {
+      return;
+    }
+    String output = executor.runGitCommand("ls-tree", "-r", "-t", "-z", commitSha);
+    Map<String, Set<String>> allChildren = Maps.newHashMap();
+    allChildren.put("", Sets.<String>newHashSet());
+    for (String line : Splitter.on('\0').omitEmptyStrings().split(output)) {
+      int pathStart = line.indexOf('\t');
+      String[] details = line.substring(0, pathStart).split(" ");
+      String path = line.substring(pathStart + 1);
+      GitTreeEntry entry = new GitTreeEntry(details[0], details[2]);
+      entries.put(path, entry);
+      if (entry.getType() == EntryType.TREE) {
+        allChildren.put(path, Sets.<String>newHashSet());
+      }
+      allChildren.get(getParentPath(path)).add(getName(path));
+    }
+    for (Map.Entry<String, Set<String>> dirChildren : allChildren.entrySet()) {
+      children.put(dirChildren.getKey(), ImmutableSortedSet.copyOf(dirChildren.getValue()));
+    }
+    fullyIndexed = true;
+  }
+
+  /**
+   * Returns the snapshot of a newer commit, reusing the index of this snapshot
+   * for the paths that did not change.
+   *
+   * The changes between the two commits are computed by a single git process.
+   *
+   * @param newCommitSha The SHA of the new commit.
+   *
+   * @return The snapshot of the new commit.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public RepositorySnapshot advanceTo(String newCommitSha) throws IOException, InterruptedException {
+    if (newCommitSha.equals(commitSha)) {
+      return this;
+    }
+    String newTreeSha = repository.readCommit(newCommitSha).getTreeSha();
+    String output = executor.runGitCommand("diff-tree", "-r", "-t", "-z", commitSha, newCommitSha);
+
+    RepositorySnapshot next;
+    synchronized (this) {
+      next = new RepositorySnapshot(repository, executor, newCommitSha,
+          new ConcurrentHashMap<String, GitTreeEntry>(entries),
+          new ConcurrentHashMap<String, SortedSet<String>>(children), fullyIndexed);
+    }
+    next.entries.put("", new GitTreeEntry(TREE_MODE, newTreeSha));
+
+    // The output consists of pairs of fields: the change details and the path.
+    // When a directory is replaced by a file, the file is added before the
+    // directory is deleted, so all the deletions are applied first.
+    List<String> fields = Lists.newArrayList(Splitter.on('\0').split(output));
+    for (boolean deletions : new boolean[] {true, false}) {
+      for (int i = 0; i + 1 < fields.size(); i += 2) {
+        // :oldMode newMode oldSha newSha status
+        String[] details = fields.get(i).substring(1).split(" ");
+        if (details[4].startsWith("D") == deletions) {
+          next.applyChange(fields.get(i + 1), details[1], details[3], details[4]);
+        }
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Applies a change to the index, if the parent directory is indexed.
+   *
+   * @param path The path of the changed entry.
+   * @param newMode The new mode of the entry.
+   * @param newSha The new SHA of the entry.
+   * @param status The change status: "A", "D", "M" or "T".
+   */
+  private void applyChange(String path, String newMode, String newSha, String status) {
+    String parentPath = getParentPath(path);
+    SortedSet<String> siblings = children.get(parentPath);
+    if (siblings == null) {
+      // The parent directory was not indexed or it was deleted.
+      entries.remove(path);
+      return;
+    }
+    String name = getName(path);
+    if (status.startsWith("D")) {
+      entries.remove(path);
+      children.remove(path);
+      children.put(parentPath, ImmutableSortedSet.copyOf(
+          Sets.difference(siblings, ImmutableSortedSet.of(name))));
+    } else {
+      GitTreeEntry entry = new GitTreeEntry(newMode, newSha);
+      GitTreeEntry oldEntry = entries.put(path, entry);
+      if (entry.getType() != EntryType.TREE) {
+        children.remove(path);
+      } else if (oldEntry == null || oldEntry.getType() != EntryType.TREE) {
+        // A new directory, its content is listed next.
+        children.put(path, ImmutableSortedSet.<String>of());
+      }
+      if (!siblings.contains(name)) {
+        children.put(parentPath, ImmutableSortedSet.<String>naturalOrder()
+            .addAll(siblings).add(name).build());
+      }
+    }
+  }
+
+  /**
+   * Indexes the entries of a directory, if not already indexed.
+   *
+   * @param dirPath The normalized path of the directory.
+   *
+   * @return <code>true</code> if there is a directory at that path.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private boolean loadDirectory(String dirPath) throws IOException, InterruptedException {
+    if (children.containsKey(dirPath)) {
+      return true;
+    }
+    if (fullyIndexed) {
+      return false;
+    }
+    GitTreeEntry dirEntry = dirPath.isEmpty() ? entries.get(dirPath) : getEntry(dirPath);
+    if (dirEntry == null || dirEntry.getType() != EntryType.TREE) {
+      return false;
+    }
+    GitTree tree = repository.readTree(dirEntry.getSha());
+    synchronized (this) {
+      if (!children.containsKey(dirPath)) {
+        String prefix = dirPath.isEmpty() ? "" : dirPath + "/";
+        for (String name : tree.getEntryNames()) {
+          entries.put(prefix + name,
+              new GitTreeEntry(tree.getEntryMode(name), tree.getEntrySha(name)));
+        }
+        // Publish the directory listing only after its entries.
+        children.put(dirPath, ImmutableSortedSet.copyOf(tree.getEntryNames()));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes the leading and trailing slashes from a path.
+   *
+   * @param path The path.
+   *
+   * @return The normalized path.
+   */
+  private static String normalize(String path) {
+    int start = 0;
+    int end = path.length();
+    while (start < end && path.charAt(start) == '/') {
+      start++;
+    }
+    while (end > start && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    return path.substring(start, end);
+  }
+
+  /**
+   * Returns the path of the parent directory.
+   *
+   * @param path The normalized path.
+   *
+   * @return The path of the parent, the empty string for the root.
+   */
+  private static String getParentPath(String path) {
+    int slashIndex = path.lastIndexOf('/');
+    return slashIndex == -1 ? "" : path.substring(0, slashIndex);
+  }
+
+  /**
+   * Returns the last component of a path.
+   *
+   * @param path The normalized path.
+   *
+   * @return The name.
+   */
+  private static String getName(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+}
@@ -0,0 +1,319 @@
+package ctalau.github.gitj;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import ctalau.github.gitj.DiffEntry.ChangeType;
+import ctalau.github.gitj.GitTree.EntryType;
+
+/**
+ * Computes the files that differ between two trees by walking them in lockstep.
+ *
+ * Subtrees with the same SHA on both sides are never read, so the cost is
+ * proportional to the size of the change and not to the size of the repository.
+ *
+ * In parallel mode, only the walks of large subtrees are submitted to the
+ * executor. The small ones cost less than a task and are walked in the
+ * thread which found them, like the large ones rejected by the executor.
+ *
+ * @author ctalau
+ */
+class TreeDiff {
+  /**
+   * The minimum number of entries of a subtree whose walk is submitted to
+   * the executor.
+   */
+  private static final int MIN_PARALLEL_ENTRIES = 64;
+
+  /**
+   * The repository from which the trees are read.
+   */
+  private final GitRepository repository;
+
+  /**
+   * The paths to which the diff is restricted. Empty for no restriction.
+   */
+  private final Collection<String> pathFilters;
+
+  /**
+   * The executor on which subtrees are descended, or <code>null</code> to walk
+   * them in the calling thread.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * The listener notified about the changed files.
+   */
+  private final DiffListener listener;
+
+  /**
+   * The number of subtree walks submitted to the executor but not finished yet.
+   */
+  private final AtomicInteger pendingWalks = new AtomicInteger();
+
+  /**
+   * The first failure of a parallel walk.
+   */
+  private volatile Exception failure;
+
+  /**
+   * Constructor.
+   *
+   * @param repository The repository from which the trees are read.
+   * @param pathFilters The paths to which the diff is restricted, or <code>null</code>.
+   * @param executor The executor used to walk subtrees in parallel, or <code>null</code>.
+   * @param listener The listener notified about the changed files.
+   */
+  TreeDiff(GitRepository repository, Collection<String> pathFilters,
+      ExecutorService executor, DiffListener listener) {
+    this.repository = repository;
+    this.pathFilters = pathFilters == null ?
+        ImmutableList.<String>of() : ImmutableList.copyOf(pathFilters);
+    this.executor = executor;
+    this.listener = listener;
+  }
+
+  /**
+   * Computes the diff between two trees.
+   *
+   * @param oldTreeSha The SHA of the old tree.
+   * @param newTreeSha The SHA of the new tree.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void run(String oldTreeSha, String newTreeSha) throws IOException, InterruptedException {
+    if (executor == null) {
+      walk("", readTree(oldTreeSha), readTree(newTreeSha));
+    } else {
+      try {
+        walk("", readTree(oldTreeSha), readTree(newTreeSha));
+      } catch (Exception e) {
+        setFailure(e);
+      }
+      synchronized (pendingWalks) {
+        while (pendingWalks.get() > 0) {
+          pendingWalks.wait();
+        }
+      }
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure instanceof InterruptedException) {
+        throw (InterruptedException) failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure != null) {
+        throw new IllegalStateException(failure);
+      }
+    }
+  }
+
+  /**
+   * Walks two trees in lockstep and reports the differences.
+   *
+   * @param prefix The path of the trees followed by a slash, or the empty string
+   * for the root.
+   * @param oldTree The old tree, empty if it is missing.
+   * @param newTree The new tree, empty if it is missing.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void walk(String prefix, GitTree oldTree, GitTree newTree)
+      throws IOException, InterruptedException {
+    Set<String> names = Sets.union(oldTree.getEntryNames(), newTree.getEntryNames());
+    for (String name : names) {
+      String path = prefix + name;
+      String oldSha = oldTree.getEntrySha(name);
+      String newSha = newTree.getEntrySha(name);
+      String oldMode = oldTree.getEntryMode(name);
+      String newMode = newTree.getEntryMode(name);
+      if (oldSha != null && oldSha.equals(newSha) && oldMode.equals(newMode)) {
+        // Identical files or subtrees.
+        continue;
+      }
+      EntryType oldType = oldTree.getEntryType(name);
+      EntryType newType = newTree.getEntryType(name);
+      if (oldType == EntryType.TREE || newType == EntryType.TREE) {
+        if (isDirectoryIncluded(path)) {
+          descend(path + "/",
+              oldType == EntryType.TREE ? oldSha : null,
+              newType == EntryType.TREE ? newSha : null);
+        }
+        // A file may have been replaced by a directory or the converse.
+        if (oldType == EntryType.TREE) {
+          oldSha = null;
+          oldMode = null;
+        }
+        if (newType == EntryType.TREE) {
+          newSha = null;
+          newMode = null;
+        }
+      }
+      if ((oldSha != null || newSha != null) && isFileIncluded(path)) {
+        reportChange(path, oldSha, newSha, oldMode, newMode);
+      }
+    }
+  }
+
+  /**
+   * Reads a tree.
+   *
+   * @param treeSha The SHA of the tree, or <code>null</code> if it is missing.
+   *
+   * @return The tree, empty if it is missing.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private GitTree readTree(String treeSha) throws IOException, InterruptedException {
+    return treeSha != null ? repository.readTree(treeSha) : new GitTree(new String[0]);
+  }
+
+  /**
+   * Reports a changed file to the listener.
+   *
+   * @param path The path of the file.
+   * @param oldSha The old SHA of the file, or <code>null</code>.
+   * @param newSha The new SHA of the file, or <code>null</code>.
+   * @param oldMode The old mode of the file, or <code>null</code>.
+   * @param newMode The new mode of the file, or <code>null</code>.
+   */
+  private void reportChange(String path, String oldSha, String newSha,
+      String oldMode, String newMode) {
+    ChangeType changeType;
+    if (oldSha == null) {
+      changeType = ChangeType.ADDED;
+    } else if (newSha == null) {
+      changeType = ChangeType.DELETED;
+    } else {
+      changeType = ChangeType.MODIFIED;
+    }
+    listener.entryChanged(new DiffEntry(changeType, path, oldSha, newSha, oldMode, newMode));
+  }
+
+  /**
+   * Descends in a pair of subtrees, possibly on another thread.
+   *
+   * @param prefix The path of the subtrees followed by a slash.
+   * @param oldTreeSha The old subtree SHA, or <code>null</code>.
+   * @param newTreeSha The new subtree SHA, or <code>null</code>.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void descend(String prefix, String oldTreeSha, String newTreeSha)
+      throws IOException, InterruptedException {
+    GitTree oldTree = readTree(oldTreeSha);
+    GitTree newTree = readTree(newTreeSha);
+    int entryCount = Math.max(oldTree.getEntryNames().size(), newTree.getEntryNames().size());
+    if (executor == null || entryCount < MIN_PARALLEL_ENTRIES) {
+      walk(prefix, oldTree, newTree);
+    } else {
+      submitWalk(prefix, oldTree, newTree);
+    }
+  }
+
+  /**
+   * Submits the walk of a pair of subtrees to the executor. If the executor
+   * rejects it, the subtrees are walked in the calling thread.
+   *
+   * @param prefix The path of the subtrees followed by a slash.
+   * @param oldTree The old subtree, empty if it is missing.
+   * @param newTree The new subtree, empty if it is missing.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void submitWalk(final String prefix, final GitTree oldTree, final GitTree newTree)
+      throws IOException, InterruptedException {
+    pendingWalks.incrementAndGet();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (failure == null) {
+              walk(prefix, oldTree, newTree);
+            }
+          } catch (Exception e) {
+            setFailure(e);
+          } finally {
+            endWalk();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      endWalk();
+      walk(prefix, oldTree, newTree);
+    }
+  }
+
+  /**
+   * Records the end of a walk submitted to the executor.
+   */
+  private void endWalk() {
+    synchronized (pendingWalks) {
+      pendingWalks.decrementAndGet();
+      pendingWalks.notifyAll();
+    }
+  }
+
+  /**
+   * Records the failure of a parallel walk, unless another one failed first.
+   *
+   * @param e The failure.
+   */
+  private void setFailure(Exception e) {
+    synchronized (pendingWalks) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+  }
+
+  /**
+   * Checks whether a file is matched by the path filters.
+   *
+   * @param path The path of the file.
+   *
+   * @return <code>true</code> if the file should be reported.
+   */
+  private boolean isFileIncluded(String path) {
+    if (pathFilters.isEmpty()) {
+      return true;
+    }
+    for (String filter : pathFilters) {
+      if (path.equals(filter) || path.startsWith(filter + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a directory may contain files matched by the path filters.
+   *
+   * @param path The path of the directory.
+   *
+   * @return <code>true</code> if the directory should be walked.
+   */
+  private boolean isDirectoryIncluded(String path) {
+    if (isFileIncluded(path)) {
+      return true;
+    }
+    for (String filter : pathFilters) {
+      if (filter.startsWith(path + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
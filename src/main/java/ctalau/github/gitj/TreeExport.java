@@ -0,0 +1,165 @@
+package ctalau.github.gitj;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * The result of exporting a tree to a directory: the manifest of the exported
+ * files and throughput metrics.
+ *
+ * The manifest can be passed to a later export of the same directory, so that
+ * only the files which changed in the meantime are rewritten.
+ *
+ * @author ctalau
+ */
+public class TreeExport {
+  /**
+   * The exported files by path relative to the target directory.
+   */
+  private final Map<String, GitTreeEntry> manifest;
+
+  /**
+   * The number of files written.
+   */
+  private final int filesWritten;
+
+  /**
+   * The number of files which were already up to date.
+   */
+  private final int filesSkipped;
+
+  /**
+   * The number of files deleted because they were removed from the tree.
+   */
+  private final int filesDeleted;
+
+  /**
+   * The number of bytes written.
+   */
+  private final long bytesWritten;
+
+  /**
+   * The duration of the export, in milliseconds.
+   */
+  private final long elapsedMillis;
+
+  /**
+   * Constructor.
+   *
+   * @param manifest The exported files by relative path.
+   * @param filesWritten The number of files written.
+   * @param filesSkipped The number of files already up to date.
+   * @param filesDeleted The number of files deleted.
+   * @param bytesWritten The number of bytes written.
+   * @param elapsedMillis The duration of the export, in milliseconds.
+   */
+  TreeExport(Map<String, GitTreeEntry> manifest, int filesWritten, int filesSkipped,
+      int filesDeleted, long bytesWritten, long elapsedMillis) {
+    this.manifest = ImmutableMap.copyOf(manifest);
+    this.filesWritten = filesWritten;
+    this.filesSkipped = filesSkipped;
+    this.filesDeleted = filesDeleted;
+    this.bytesWritten = bytesWritten;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /**
+   * @return The exported files by path relative to the target directory.
+   */
+  public Map<String, GitTreeEntry> getManifest() {
+    return manifest;
+  }
+
+  /**
+   * @return The number of files written.
+   */
+  public int getFilesWritten() {
+    return filesWritten;
+  }
+
+  /**
+   * @return The number of files which were already up to date.
+   */
+  public int getFilesSkipped() {
+    return filesSkipped;
+  }
+
+  /**
+   * @return The number of files deleted because they were removed from the tree.
+   */
+  public int getFilesDeleted() {
+    return filesDeleted;
+  }
+
+  /**
+   * @return The number of bytes written.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * @return The duration of the export, in milliseconds.
+   */
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  /**
+   * @return The write throughput, in bytes per second.
+   */
+  public double getBytesPerSecond() {
+    return bytesWritten * 1000.0 / Math.max(1, elapsedMillis);
+  }
+
+  /**
+   * @return The write throughput, in files per second.
+   */
+  public double getFilesPerSecond() {
+    return filesWritten * 1000.0 / Math.max(1, elapsedMillis);
+  }
+
+  /**
+   * Saves the manifest to a file, in the <code>git ls-tree -z</code> format.
+   *
+   * @param file The file.
+   *
+   * @throws IOException
+   */
+  public void saveManifest(File file) throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (Map.Entry<String, GitTreeEntry> entry : manifest.entrySet()) {
+      content.append(entry.getValue().getMode()).append(" blob ")
+          .append(entry.getValue().getSha()).append('\t')
+          .append(entry.getKey()).append('\0');
+    }
+    Files.write(content, file, Charsets.UTF_8);
+  }
+
+  /**
+   * Loads a manifest saved by {@link #saveManifest(File)}.
+   *
+   * @param file The file.
+   *
+   * @return The previous export, with the loaded manifest and no metrics.
+   *
+   * @throws IOException
+   */
+  public static TreeExport loadManifest(File file) throws IOException {
+    Map<String, GitTreeEntry> manifest = Maps.newHashMap();
+    String content = Files.toString(file, Charsets.UTF_8);
+    for (String line : Splitter.on('\0').omitEmptyStrings().split(content)) {
+      int pathStart = line.indexOf('\t');
+      String[] details = line.substring(0, pathStart).split(" ");
+      manifest.put(line.substring(pathStart + 1), new GitTreeEntry(details[0], details[2]));
+    }
+    return new TreeExport(manifest, 0, 0, 0, 0, 0);
+  }
+}
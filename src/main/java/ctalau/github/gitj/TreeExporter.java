@@ -0,0 +1,279 @@
+package ctalau.github.gitj;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Writes the files of a tree to a directory on disk.
+ *
+ * The blobs are streamed from a single <code>cat-file --batch</code> process
+ * and written to disk by a pool of threads. Small blobs are buffered and
+ * handed to the pool, while large ones are streamed straight to their file.
+ *
+ * The paths of the entries are checked to stay inside the target directory,
+ * so that a crafted tree cannot write elsewhere. The directories emptied by
+ * an incremental export are removed.
+ *
+ * @author ctalau
+ */
+class TreeExporter {
+  /**
+   * The mode of executable files.
+   */
+  private static final String EXECUTABLE_MODE = "100755";
+
+  /**
+   * The mode of symbolic links.
+   */
+  private static final String SYMLINK_MODE = "120000";
+
+  /**
+   * Blobs larger than this are written by the reading thread, without buffering.
+   */
+  private static final int MAX_BUFFERED_BLOB_SIZE = 1024 * 1024;
+
+  /**
+   * The number of buffered blobs waiting to be written, per writer thread.
+   */
+  private static final int QUEUED_WRITES_PER_THREAD = 16;
+
+  /**
+   * The git command executor.
+   */
+  private final GitCommandExecutor executor;
+
+  /**
+   * The number of threads that write files.
+   */
+  private final int writerThreads;
+
+  /**
+   * The number of bytes written so far.
+   */
+  private final AtomicLong bytesWritten = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param executor The git command executor.
+   * @param writerThreads The number of threads that write files.
+   */
+  TreeExporter(GitCommandExecutor executor, int writerThreads) {
+    this.executor = executor;
+    this.writerThreads = writerThreads;
+  }
+
+  /**
+   * Exports a directory of a commit.
+   *
+   * @param sha The SHA of the commit.
+   * @param dirPath The path of the directory in the commit, empty for the root.
+   * @param target The directory on disk.
+   * @param previousExport A previous export to the same directory, or
+   * <code>null</code> to write all the files.
+   *
+   * @return The export result.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  TreeExport export(String sha, String dirPath, Path target, TreeExport previousExport)
+      throws IOException, InterruptedException {
+    final Path root = target.toAbsolutePath().normalize();
+    long startTime = System.nanoTime();
+    Map<String, GitTreeEntry> manifest = listFiles(sha, dirPath);
+    Map<String, GitTreeEntry> previousManifest = previousExport == null ?
+        Maps.<String, GitTreeEntry>newHashMap() : previousExport.getManifest();
+
+    for (String path : manifest.keySet()) {
+      resolve(root, path);
+    }
+    int filesDeleted = 0;
+    for (String path : previousManifest.keySet()) {
+      if (!manifest.containsKey(path)) {
+        Path file = resolve(root, path);
+        if (Files.deleteIfExists(file)) {
+          filesDeleted++;
+        }
+        deleteEmptyDirectories(root, file.getParent());
+      }
+    }
+
+    final List<String> pathsToWrite = Lists.newArrayList();
+    final List<String> blobsToRead = Lists.newArrayList();
+    for (Map.Entry<String, GitTreeEntry> entry : manifest.entrySet()) {
+      if (!entry.getValue().equals(previousManifest.get(entry.getKey()))) {
+        pathsToWrite.add(entry.getKey());
+        blobsToRead.add(entry.getValue().getSha());
+      }
+    }
+    final List<String> modes = Lists.newArrayListWithCapacity(pathsToWrite.size());
+    for (String path : pathsToWrite) {
+      modes.add(manifest.get(path).getMode());
+    }
+
+    ThreadPoolExecutor writers = new ThreadPoolExecutor(writerThreads, writerThreads,
+        0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(writerThreads * QUEUED_WRITES_PER_THREAD),
+        // When the queue is full, the reading thread writes the file itself.
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    final List<Future<?>> writes = Lists.newArrayList();
+    CatFileBatch batch = new CatFileBatch(executor);
+    try {
+      batch.readAll(blobsToRead, new CatFileBatch.ObjectHandler() {
+        int index = 0;
+        @Override
+        public void objectRead(String blobSha, long size, InputStream content) throws IOException {
+          final Path file = resolve(root, pathsToWrite.get(index));
+          final String mode = modes.get(index);
+          index++;
+          if (size > MAX_BUFFERED_BLOB_SIZE) {
+            writeFile(file, mode, content);
+          } else {
+            final byte[] bytes = new byte[(int) size];
+            ByteStreams.readFully(content, bytes);
+            writes.add(writers.submit(new Callable<Void>() {
+              @Override
+              public Void call() throws IOException {
+                writeFile(file, mode, new ByteArrayInputStream(bytes));
+                return null;
+              }
+            }));
+          }
+        }
+      });
+      for (Future<?> write : writes) {
+        write.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      batch.close();
+      writers.shutdownNow();
+    }
+
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    return new TreeExport(manifest, pathsToWrite.size(),
+        manifest.size() - pathsToWrite.size(), filesDeleted, bytesWritten.get(), elapsedMillis);
+  }
+
+  /**
+   * Lists the files in a directory of a commit, recursively.
+   *
+   * @param sha The SHA of the commit.
+   * @param dirPath The path of the directory, empty for the root.
+   *
+   * @return The files by path relative to the directory.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private Map<String, GitTreeEntry> listFiles(String sha, String dirPath)
+      throws IOException, InterruptedException {
+    String prefix = dirPath.isEmpty() || dirPath.endsWith("/") ? dirPath : dirPath + "/";
+    String output = prefix.isEmpty() ?
+        executor.runGitCommand("ls-tree", "-r", "-z", sha) :
+        executor.runGitCommand("ls-tree", "-r", "-z", sha, "--", prefix);
+    Map<String, GitTreeEntry> files = Maps.newLinkedHashMap();
+    for (String line : Splitter.on('\0').omitEmptyStrings().split(output)) {
+      int pathStart = line.indexOf('\t');
+      String[] details = line.substring(0, pathStart).split(" ");
+      String path = line.substring(pathStart + 1);
+      if (!details[0].equals(DiffEntry.GITLINK_MODE)) {
+        files.put(path.substring(prefix.length()), new GitTreeEntry(details[0], details[2]));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Resolves the path of an entry in the target directory.
+   *
+   * @param root The normalized, absolute path of the target directory.
+   * @param path The path of the entry, relative to the target directory.
+   *
+   * @return The path of the file.
+   *
+   * @throws IOException If the path is outside the target directory.
+   */
+  private static Path resolve(Path root, String path) throws IOException {
+    Path file = root.resolve(path).normalize();
+    if (!file.startsWith(root) || file.equals(root)) {
+      throw new IOException("Path outside the target directory: " + path);
+    }
+    return file;
+  }
+
+  /**
+   * Removes a directory and its parents, up to the target directory, as
+   * long as they are empty.
+   *
+   * @param root The normalized, absolute path of the target directory.
+   * @param dir The directory.
+   *
+   * @throws IOException
+   */
+  private static void deleteEmptyDirectories(Path root, Path dir) throws IOException {
+    while (!dir.equals(root) && dir.startsWith(root)) {
+      try {
+        if (!Files.deleteIfExists(dir)) {
+          return;
+        }
+      } catch (DirectoryNotEmptyException e) {
+        return;
+      }
+      dir = dir.getParent();
+    }
+  }
+
+  /**
+   * Writes a file to disk.
+   *
+   * @param file The path of the file.
+   * @param mode The mode of the file.
+   * @param content The content of the file.
+   *
+   * @throws IOException
+   */
+  private void writeFile(Path file, String mode, InputStream content) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.deleteIfExists(file);
+    if (mode.equals(SYMLINK_MODE)) {
+      byte[] linkTarget = ByteStreams.toByteArray(content);
+      Files.createSymbolicLink(file, file.getFileSystem().getPath(
+          new String(linkTarget, Charsets.UTF_8)));
+      bytesWritten.addAndGet(linkTarget.length);
+    } else {
+      OutputStream output = Files.newOutputStream(file);
+      try {
+        bytesWritten.addAndGet(ByteStreams.copy(content, output));
+      } finally {
+        output.close();
+      }
+      if (mode.equals(EXECUTABLE_MODE)) {
+        // Like git, for everyone.
+        file.toFile().setExecutable(true, false);
+      }
+    }
+  }
+}
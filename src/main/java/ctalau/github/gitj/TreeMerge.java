@@ -0,0 +1,344 @@
+package ctalau.github.gitj;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import ctalau.github.gitj.GitTree.EntryType;
+import ctalau.github.gitj.MergeConflict.ConflictType;
+
+/**
+ * Merges two trees with respect to the tree of their merge base.
+ *
+ * The three trees are walked in lockstep and an entry changed on only one
+ * side is taken from that side by SHA, so unchanged subtrees are never read
+ * and the cost is proportional to the number of changed paths. Only the
+ * files changed on both sides are read and merged line by line.
+ *
+ * @author ctalau
+ */
+class TreeMerge {
+  /**
+   * The mode of a tree entry.
+   */
+  private static final String TREE_MODE = "040000";
+
+  /**
+   * The mode of a regular file.
+   */
+  private static final String FILE_MODE = "100644";
+
+  /**
+   * The mode of an executable file.
+   */
+  private static final String EXECUTABLE_MODE = "100755";
+
+  /**
+   * The repository in which the trees are merged.
+   */
+  private final GitRepository repository;
+
+  /**
+   * The git command executor.
+   */
+  private final GitCommandExecutor executor;
+
+  /**
+   * The paths that could not be merged.
+   */
+  private final List<MergeConflict> conflicts = Lists.newArrayList();
+
+  /**
+   * The process which reads the files to merge, started when first needed.
+   */
+  private CatFileBatch batch;
+
+  /**
+   * The folder where the files to merge are written, created when first needed.
+   */
+  private File tmpDir;
+
+  /**
+   * Constructor.
+   *
+   * @param repository The repository in which the trees are merged.
+   * @param executor The git command executor.
+   */
+  TreeMerge(GitRepository repository, GitCommandExecutor executor) {
+    this.repository = repository;
+    this.executor = executor;
+  }
+
+  /**
+   * Merges two trees. Where there are conflicts, our side is kept.
+   *
+   * @param baseTreeSha The SHA of the tree of the merge base, or
+   * <code>null</code> if there is none.
+   * @param oursTreeSha The SHA of our tree.
+   * @param theirsTreeSha The SHA of their tree.
+   *
+   * @return The SHA of the merged tree.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  String run(String baseTreeSha, String oursTreeSha, String theirsTreeSha)
+      throws IOException, InterruptedException {
+    try {
+      String treeSha = merge("", baseTreeSha, oursTreeSha, theirsTreeSha);
+      return treeSha != null ? treeSha : repository.writeTree(new GitTree(new String[0]));
+    } finally {
+      if (batch != null) {
+        batch.close();
+      }
+      if (tmpDir != null) {
+        for (File file : tmpDir.listFiles()) {
+          file.delete();
+        }
+        tmpDir.delete();
+      }
+    }
+  }
+
+  /**
+   * @return The paths that could not be merged.
+   */
+  List<MergeConflict> getConflicts() {
+    return conflicts;
+  }
+
+  /**
+   * Merges three versions of a tree.
+   *
+   * @param prefix The path of the trees followed by a slash, or the empty
+   * string for the root.
+   * @param baseTreeSha The SHA of the base tree, or <code>null</code> if missing.
+   * @param oursTreeSha The SHA of our tree, or <code>null</code> if missing.
+   * @param theirsTreeSha The SHA of their tree, or <code>null</code> if missing.
+   *
+   * @return The SHA of the merged tree, or <code>null</code> if it is empty.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private String merge(String prefix, String baseTreeSha, String oursTreeSha,
+      String theirsTreeSha) throws IOException, InterruptedException {
+    GitTree baseTree = readTree(baseTreeSha);
+    GitTree oursTree = readTree(oursTreeSha);
+    GitTree theirsTree = readTree(theirsTreeSha);
+
+    // Sorted, so that the conflicts are reported in a stable order.
+    Set<String> names = Sets.newTreeSet(baseTree.getEntryNames());
+    names.addAll(oursTree.getEntryNames());
+    names.addAll(theirsTree.getEntryNames());
+    boolean changed = false;
+    for (String name : names) {
+      GitTreeEntry base = getEntry(baseTree, name);
+      GitTreeEntry ours = getEntry(oursTree, name);
+      GitTreeEntry theirs = getEntry(theirsTree, name);
+      if (Objects.equal(ours, theirs) || Objects.equal(base, theirs)) {
+        // Our side is kept.
+        continue;
+      }
+      GitTreeEntry merged = Objects.equal(base, ours)
+          ? theirs : mergeEntry(prefix + name, base, ours, theirs);
+      if (Objects.equal(merged, ours)) {
+        continue;
+      }
+      if (merged == null) {
+        oursTree.removeEntry(name);
+      } else {
+        oursTree.updateEntry(name, merged.getMode(), merged.getSha());
+      }
+      changed = true;
+    }
+    if (!changed) {
+      return oursTreeSha;
+    }
+    return oursTree.getEntryNames().isEmpty() ? null : repository.writeTree(oursTree);
+  }
+
+  /**
+   * Merges an entry changed differently on both sides.
+   *
+   * @param path The path of the entry.
+   * @param base The entry in the base tree, or <code>null</code> if missing.
+   * @param ours Our entry, or <code>null</code> if missing.
+   * @param theirs Their entry, or <code>null</code> if missing.
+   *
+   * @return The merged entry, or <code>null</code> if it is deleted. Our
+   * entry in case of conflicts.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private GitTreeEntry mergeEntry(String path, GitTreeEntry base, GitTreeEntry ours,
+      GitTreeEntry theirs) throws IOException, InterruptedException {
+    if (isTreeOrMissing(base) && isTreeOrMissing(ours) && isTreeOrMissing(theirs)) {
+      // A directory deleted on one side is merged as an empty one, so that
+      // only the files changed on the other side are in conflict.
+      String treeSha = merge(path + "/", getSha(base), getSha(ours), getSha(theirs));
+      return treeSha != null ? new GitTreeEntry(TREE_MODE, treeSha) : null;
+    }
+    if (ours == null || theirs == null) {
+      addConflict(ConflictType.MODIFY_DELETE, path, base, ours, theirs);
+      return ours;
+    }
+    if (!isFile(ours) || !isFile(theirs) || (base != null && !isFile(base))) {
+      addConflict(ConflictType.TYPE, path, base, ours, theirs);
+      return ours;
+    }
+
+    String mode;
+    if (ours.getMode().equals(theirs.getMode())) {
+      mode = ours.getMode();
+    } else if (base != null && base.getMode().equals(ours.getMode())) {
+      mode = theirs.getMode();
+    } else if (base != null && base.getMode().equals(theirs.getMode())) {
+      mode = ours.getMode();
+    } else {
+      addConflict(ConflictType.TYPE, path, base, ours, theirs);
+      return ours;
+    }
+    String blobSha = ours.getSha();
+    if (!blobSha.equals(theirs.getSha())) {
+      blobSha = mergeContent(getSha(base), ours.getSha(), theirs.getSha());
+      if (blobSha == null) {
+        addConflict(ConflictType.CONTENT, path, base, ours, theirs);
+        return ours;
+      }
+    }
+    return new GitTreeEntry(mode, blobSha);
+  }
+
+  /**
+   * Merges three versions of a file line by line.
+   *
+   * @param baseSha The SHA of the base blob, or <code>null</code> if the
+   * file was added on both sides.
+   * @param oursSha The SHA of our blob.
+   * @param theirsSha The SHA of their blob.
+   *
+   * @return The SHA of the merged blob, or <code>null</code> if the changes
+   * overlap or the file is binary.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private String mergeContent(String baseSha, String oursSha, String theirsSha)
+      throws IOException, InterruptedException {
+    if (batch == null) {
+      batch = new CatFileBatch(executor);
+      tmpDir = Files.createTempDir();
+    }
+    File oursFile = writeBlob(oursSha, "ours");
+    File baseFile = writeBlob(baseSha, "base");
+    File theirsFile = writeBlob(theirsSha, "theirs");
+    GitProcess process = executor.startGitCommand("merge-file", "-p", "-q",
+        oursFile.getAbsolutePath(), baseFile.getAbsolutePath(), theirsFile.getAbsolutePath());
+    try {
+      byte[] merged = ByteStreams.toByteArray(process.getInputStream());
+      // The exit code is the number of conflicts, or negative on errors.
+      if (process.waitFor() != 0) {
+        return null;
+      }
+      return repository.hashBlob(merged);
+    } finally {
+      process.close();
+    }
+  }
+
+  /**
+   * Writes the content of a blob to a file in the temporary folder.
+   *
+   * @param blobSha The SHA of the blob, or <code>null</code> for an empty file.
+   * @param name The name of the file.
+   *
+   * @return The file.
+   *
+   * @throws IOException
+   */
+  private File writeBlob(String blobSha, String name) throws IOException {
+    byte[] content = blobSha != null ? batch.read(blobSha) : new byte[0];
+    if (content == null) {
+      throw new IOException("Missing blob: " + blobSha);
+    }
+    File file = new File(tmpDir, name);
+    Files.write(content, file);
+    return file;
+  }
+
+  /**
+   * Records a conflict.
+   *
+   * @param conflictType The kind of conflict.
+   * @param path The path of the entry.
+   * @param base The entry in the base tree, or <code>null</code>.
+   * @param ours Our entry, or <code>null</code>.
+   * @param theirs Their entry, or <code>null</code>.
+   */
+  private void addConflict(ConflictType conflictType, String path, GitTreeEntry base,
+      GitTreeEntry ours, GitTreeEntry theirs) {
+    conflicts.add(new MergeConflict(conflictType, path, getSha(base), getSha(ours), getSha(theirs)));
+  }
+
+  /**
+   * Reads a tree.
+   *
+   * @param treeSha The SHA of the tree, or <code>null</code> if missing.
+   *
+   * @return The tree, empty if missing.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private GitTree readTree(String treeSha) throws IOException, InterruptedException {
+    return treeSha != null ? repository.readTree(treeSha) : new GitTree(new String[0]);
+  }
+
+  /**
+   * @param tree The tree.
+   * @param name The name of an entry.
+   *
+   * @return The entry, or <code>null</code> if missing.
+   */
+  private static GitTreeEntry getEntry(GitTree tree, String name) {
+    String sha = tree.getEntrySha(name);
+    return sha != null ? new GitTreeEntry(tree.getEntryMode(name), sha) : null;
+  }
+
+  /**
+   * @param entry An entry, or <code>null</code>.
+   *
+   * @return The SHA of the entry, or <code>null</code>.
+   */
+  private static String getSha(GitTreeEntry entry) {
+    return entry != null ? entry.getSha() : null;
+  }
+
+  /**
+   * @param entry An entry, or <code>null</code>.
+   *
+   * @return <code>true</code> if the entry is a tree or is missing.
+   */
+  private static boolean isTreeOrMissing(GitTreeEntry entry) {
+    return entry == null || entry.getType() == EntryType.TREE;
+  }
+
+  /**
+   * @param entry An entry.
+   *
+   * @return <code>true</code> if the entry is a regular or executable file,
+   * whose content can be merged.
+   */
+  private static boolean isFile(GitTreeEntry entry) {
+    return entry.getMode().equals(FILE_MODE) || entry.getMode().equals(EXECUTABLE_MODE);
+  }
+}
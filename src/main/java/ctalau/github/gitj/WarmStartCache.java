@@ -0,0 +1,295 @@
+package ctalau.github.gitj;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A file with the parsed commits and the branch snapshot indexes of a
+ * repository, which lets a new process start with warm caches.
+ *
+ * The file is memory-mapped when loaded. Commit SHAs are stored as 20 raw
+ * bytes and strings as their UTF-8 bytes, preceded by their length. The
+ * content is not validated against the repository here: this is up to the
+ * caller.
+ *
+ * @author ctalau
+ */
+class WarmStartCache {
+  /**
+   * The bytes at the start of the file.
+   */
+  private static final int MAGIC = 0x676a7763;
+
+  /**
+   * The version of the file format.
+   */
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * The length of a raw SHA.
+   */
+  private static final int SHA_LENGTH = 20;
+
+  /**
+   * The parsed commits.
+   */
+  private final List<GitCommit> commits;
+
+  /**
+   * The snapshots, by branch name.
+   */
+  private final Map<String, RepositorySnapshot> snapshots;
+
+  /**
+   * Constructor.
+   *
+   * @param commits The parsed commits.
+   * @param snapshots The snapshots, by branch name.
+   */
+  private WarmStartCache(List<GitCommit> commits, Map<String, RepositorySnapshot> snapshots) {
+    this.commits = commits;
+    this.snapshots = snapshots;
+  }
+
+  /**
+   * @return The parsed commits.
+   */
+  List<GitCommit> getCommits() {
+    return commits;
+  }
+
+  /**
+   * @return The snapshots, by branch name.
+   */
+  Map<String, RepositorySnapshot> getSnapshots() {
+    return snapshots;
+  }
+
+  /**
+   * Saves commits and branch snapshots to a file, atomically.
+   *
+   * @param file The file.
+   * @param commits The parsed commits.
+   * @param snapshots The snapshots, by branch name.
+   *
+   * @throws IOException
+   */
+  static void save(File file, Collection<GitCommit> commits,
+      Map<String, RepositorySnapshot> snapshots) throws IOException {
+    File parentDir = file.getAbsoluteFile().getParentFile();
+    parentDir.mkdirs();
+    File tmpFile = File.createTempFile(file.getName(), ".tmp", parentDir);
+    try {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmpFile)));
+      try {
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(commits.size());
+        for (GitCommit commit : commits) {
+          writeSha(output, commit.getSha());
+          writeSha(output, commit.getTreeSha());
+          output.writeInt(commit.getParents().size());
+          for (String parent : commit.getParents()) {
+            writeSha(output, parent);
+          }
+          writeString(output, commit.getAuthor());
+          writeString(output, commit.getCommitter());
+          writeString(output, commit.getMessage());
+        }
+        output.writeInt(snapshots.size());
+        for (Map.Entry<String, RepositorySnapshot> branchSnapshot : snapshots.entrySet()) {
+          RepositorySnapshot snapshot = branchSnapshot.getValue();
+          writeString(output, branchSnapshot.getKey());
+          writeSha(output, snapshot.getCommitSha());
+          output.writeBoolean(snapshot.isFullyIndexed());
+          Map<String, GitTreeEntry> entries = snapshot.getIndexedEntries();
+          output.writeInt(entries.size());
+          for (Map.Entry<String, GitTreeEntry> entry : entries.entrySet()) {
+            writeString(output, entry.getKey());
+            writeString(output, entry.getValue().getMode());
+            writeSha(output, entry.getValue().getSha());
+          }
+          // The names of the entries are the paths above, so only the
+          // indexed directories are stored.
+          Map<String, SortedSet<String>> children = snapshot.getIndexedDirectories();
+          output.writeInt(children.size());
+          for (Map.Entry<String, SortedSet<String>> dir : children.entrySet()) {
+            writeString(output, dir.getKey());
+            output.writeInt(dir.getValue().size());
+            for (String name : dir.getValue()) {
+              writeString(output, name);
+            }
+          }
+        }
+      } finally {
+        output.close();
+      }
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Loads the content of a file written by {@link #save(File, Collection, Map)}.
+   *
+   * @param file The file.
+   * @param repository The repository of the snapshots.
+   * @param executor The git command executor of the snapshots.
+   *
+   * @return The content of the file.
+   *
+   * @throws IOException If the file cannot be read or is corrupt.
+   */
+  static WarmStartCache load(File file, GitRepository repository, GitCommandExecutor executor)
+      throws IOException {
+    ByteBuffer input;
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      // The mapping remains valid after the channel is closed.
+      input = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      channel.close();
+    }
+    try {
+      if (input.getInt() != MAGIC || input.getInt() != FORMAT_VERSION) {
+        throw new IOException("Unsupported cache file: " + file);
+      }
+      int commitCount = readCount(input);
+      List<GitCommit> commits = Lists.newArrayListWithCapacity(commitCount);
+      for (int i = 0; i < commitCount; i++) {
+        String sha = readSha(input);
+        String treeSha = readSha(input);
+        int parentCount = readCount(input);
+        List<String> parents = Lists.newArrayListWithCapacity(parentCount);
+        for (int j = 0; j < parentCount; j++) {
+          parents.add(readSha(input));
+        }
+        commits.add(new GitCommit(sha, treeSha, parents,
+            readString(input), readString(input), readString(input)));
+      }
+      int snapshotCount = readCount(input);
+      Map<String, RepositorySnapshot> snapshots = Maps.newHashMap();
+      for (int i = 0; i < snapshotCount; i++) {
+        String branch = readString(input);
+        String commitSha = readSha(input);
+        boolean fullyIndexed = input.get() != 0;
+        int entryCount = readCount(input);
+        Map<String, GitTreeEntry> entries = Maps.newHashMapWithExpectedSize(entryCount);
+        for (int j = 0; j < entryCount; j++) {
+          String path = readString(input);
+          entries.put(path, new GitTreeEntry(readString(input), readSha(input)));
+        }
+        int dirCount = readCount(input);
+        Map<String, SortedSet<String>> children = Maps.newHashMapWithExpectedSize(dirCount);
+        for (int j = 0; j < dirCount; j++) {
+          String dirPath = readString(input);
+          int nameCount = readCount(input);
+          List<String> names = Lists.newArrayListWithCapacity(nameCount);
+          for (int k = 0; k < nameCount; k++) {
+            names.add(readString(input));
+          }
+          children.put(dirPath, ImmutableSortedSet.copyOf(names));
+        }
+        snapshots.put(branch, RepositorySnapshot.restore(repository, executor, commitSha,
+            entries, children, fullyIndexed));
+      }
+      return new WarmStartCache(commits, snapshots);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated cache file: " + file, e);
+    }
+  }
+
+  /**
+   * Writes a SHA as raw bytes.
+   *
+   * @param output The output.
+   * @param sha The hex SHA.
+   *
+   * @throws IOException
+   */
+  private static void writeSha(DataOutputStream output, String sha) throws IOException {
+    output.write(BaseEncoding.base16().lowerCase().decode(sha));
+  }
+
+  /**
+   * Writes a string as UTF-8 bytes preceded by their length.
+   *
+   * @param output The output.
+   * @param value The string.
+   *
+   * @throws IOException
+   */
+  private static void writeString(DataOutputStream output, String value) throws IOException {
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  /**
+   * Reads a SHA stored as raw bytes.
+   *
+   * @param input The input.
+   *
+   * @return The hex SHA.
+   */
+  private static String readSha(ByteBuffer input) {
+    byte[] bytes = new byte[SHA_LENGTH];
+    input.get(bytes);
+    return BaseEncoding.base16().lowerCase().encode(bytes);
+  }
+
+  /**
+   * Reads a string stored as UTF-8 bytes preceded by their length.
+   *
+   * @param input The input.
+   *
+   * @return The string.
+   *
+   * @throws IOException
+   */
+  private static String readString(ByteBuffer input) throws IOException {
+    byte[] bytes = new byte[readCount(input)];
+    input.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  /**
+   * Reads a count, and checks that it is plausible for the rest of the input.
+   *
+   * @param input The input.
+   *
+   * @return The count.
+   *
+   * @throws IOException If the count is corrupt.
+   */
+  private static int readCount(ByteBuffer input) throws IOException {
+    int count = input.getInt();
+    // Every counted item takes at least one byte.
+    if (count < 0 || count > input.remaining()) {
+      throw new IOException("Corrupt cache file");
+    }
+    return count;
+  }
+}
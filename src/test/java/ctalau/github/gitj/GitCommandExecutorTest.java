@@ -96,4 +96,19 @@ public class GitCommandExecutorTest {
     assertEquals("bb5d54921f75c3a5faeb18e2426c016d02b2d945", treeSha.trim());
   }
 
+  /**
+   * Test the counting of the started processes.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testProcessCounts() throws Exception {
+    executor.runGitCommand("status");
+    executor.runGitCommand("status");
+    executor.startGitCommand("rev-parse", "--git-dir").close();
+    assertEquals(Long.valueOf(1), executor.getProcessCounts().get("init"));
+    assertEquals(Long.valueOf(2), executor.getProcessCounts().get("status"));
+    assertEquals(Long.valueOf(1), executor.getProcessCounts().get("rev-parse"));
+  }
+
 }
@@ -2,11 +2,27 @@ package ctalau.github.gitj;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
@@ -14,7 +30,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
 /**
@@ -303,6 +322,1168 @@ public class GitRepositoryTest {
     assertFalse(commitSha.equals(repository.getLatestCommitSha("master")));
   }
 
+  /**
+   * Test that moving a branch to its current head, as after a write that 
+   * did not change anything, succeeds without notifying the listeners.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testUnchangedWriteMoveBranch() throws Exception {
+    addFileOnCurrentBranch("a.txt", "a");
+    GitRepository repository = new GitRepository(repoDir);
+    String headSha = repository.getLatestCommitSha("master");
+    final List<BranchChangeEvent> events = Lists.newArrayList();
+    repository.addBranchListener(new BranchListener() {
+      @Override
+      public void branchChanged(BranchChangeEvent event) {
+        events.add(event);
+      }
+    });
 
-}
+    String commitSha = repository.writeFile(headSha, "a.txt", "a", "Unchanged");
+    assertEquals(headSha, commitSha);
+    assertTrue(repository.moveBranch("master", commitSha));
+    assertEquals(headSha, repository.getLatestCommitSha("master"));
+    assertTrue(events.isEmpty());
+  }
+
+  /**
+   * Test that the listeners are notified without the repository lock, and
+   * that a failing listener does not fail the move nor skip the others.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testBranchListenerFailure() throws Exception {
+    final GitRepository repository = new GitRepository(repoDir);
+    String headSha = repository.getLatestCommitSha("master");
+    ContentIndex index = repository.indexBranchContent("master");
+    final List<BranchChangeEvent> events = Lists.newArrayList();
+    final List<Boolean> lockHeld = Lists.newArrayList();
+    repository.addBranchListener(new BranchListener() {
+      @Override
+      public void branchChanged(BranchChangeEvent event) {
+        throw new IllegalStateException("Listener failure");
+      }
+    });
+    repository.addBranchListener(new BranchListener() {
+      @Override
+      public void branchChanged(BranchChangeEvent event) {
+        lockHeld.add(Thread.holdsLock(repository));
+        events.add(event);
+      }
+    });
+
+    String commitSha = repository.writeFile(headSha, "a.txt", "a", "Added");
+    assertTrue(repository.moveBranch("master", commitSha));
+    assertEquals(commitSha, index.getCommitSha());
+    assertTrue(repository.newRefTransaction()
+        .create("other", commitSha)
+        .commit());
+
+    assertEquals(2, events.size());
+    assertEquals(commitSha, events.get(0).getNewSha());
+    assertEquals("other", events.get(1).getBranch());
+    assertEquals(ImmutableList.of(false, false), lockHeld);
+  }
+
+  /**
+   * Test paging through the commit history.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testLogPaging() throws Exception {
+    addFileOnCurrentBranch("a.txt", "a");
+    addFileOnCurrentBranch("b.txt", "b");
+    addFileOnCurrentBranch("a.txt", "a2");
+    
+    GitRepository repository = new GitRepository(repoDir);
+    CommitLog firstPage = repository.log("master", null, 2, null);
+    List<String> messages = Lists.newArrayList();
+    while (firstPage.hasNext()) {
+      messages.add(firstPage.next().getMessage().trim());
+    }
+    assertEquals(ImmutableList.of("Added: a.txt", "Added: b.txt"), messages);
+    String cursor = firstPage.getCursor();
+    
+    // Move the branch, the cursor should still point in the old history.
+    addFileOnCurrentBranch("c.txt", "c");
+    CommitLog secondPage = repository.log("master", null, 2, cursor);
+    GitCommit commit = secondPage.next();
+    assertEquals("Added: a.txt", commit.getMessage().trim());
+    assertEquals(1, commit.getParents().size());
+    assertTrue(secondPage.next().getParents().isEmpty());
+    assertFalse(secondPage.hasNext());
+    assertNull(secondPage.getCursor());
+    
+    // Restrict the history to a path.
+    CommitLog pathLog = repository.log("master", "a.txt", -1, null);
+    assertEquals(2, Iterators.size(pathLog));
+  }
+
+  /**
+   * Test that paging through a history with merges returns every commit
+   * once, in the same order as a single page.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testLogPagingWithMerges() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    String baseSha = repository.getLatestCommitSha("master");
+    String oursSha = repository.writeFile(baseSha, "a.txt", "a", "Ours\n\n    Indented details");
+    oursSha = repository.writeFile(oursSha, "b.txt", "b", "Ours b");
+    String theirsSha = repository.writeFile(baseSha, "a.txt", "a", "Theirs");
+    theirsSha = repository.writeFile(theirsSha, "c.txt", "c", "Theirs c");
+    String mergedSha = repository.merge(oursSha, theirsSha, "Merged").getCommitSha();
+    String headSha = repository.writeFile(mergedSha, "a.txt", "a2", "Head");
+
+    for (String pathFilter : Arrays.asList(null, "a.txt")) {
+      List<String> expected = Lists.newArrayList();
+      CommitLog fullLog = repository.log(headSha, pathFilter, -1, null);
+      while (fullLog.hasNext()) {
+        GitCommit commit = fullLog.next();
+        assertEquals(repository.readCommit(commit.getSha()).getMessage(), commit.getMessage());
+        expected.add(commit.getSha());
+      }
+      assertNull(fullLog.getCursor());
+
+      List<String> paged = Lists.newArrayList();
+      String cursor = null;
+      do {
+        CommitLog page = repository.log(headSha, pathFilter, 1, cursor);
+        while (page.hasNext()) {
+          paged.add(page.next().getSha());
+        }
+        cursor = page.getCursor();
+      } while (cursor != null);
+      assertEquals(expected, paged);
+    }
+  }
+
+  /**
+   * Test computing the differences between two commits.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testDiff() throws Exception {
+    addFileOnCurrentBranch("a/unchanged/file.txt", "same");
+    addFileOnCurrentBranch("a/b/modified.txt", "before");
+    addFileOnCurrentBranch("a/b/deleted.txt", "deleted");
+    
+    GitRepository repository = new GitRepository(repoDir);
+    String oldSha = repository.getLatestCommitSha("master");
+    String newSha = repository.writeFile(oldSha, "a/b/modified.txt", "after", "Modified");
+    newSha = repository.deleteFile(newSha, "a/b/deleted.txt", "Deleted");
+    newSha = repository.writeFile(newSha, "a/c/added.txt", "added", "Added");
+    
+    List<DiffEntry> entries = repository.diff(oldSha, newSha);
+    assertEquals("[DELETED a/b/deleted.txt, MODIFIED a/b/modified.txt, ADDED a/c/added.txt]", 
+        entries.toString());
+    
+    // Restrict the diff to a folder and walk it in parallel.
+    final List<DiffEntry> filtered = Collections.synchronizedList(Lists.<DiffEntry>newArrayList());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      repository.diff(oldSha, newSha, ImmutableList.of("a/c"), executor, new DiffListener() {
+        @Override
+        public void entryChanged(DiffEntry entry) {
+          filtered.add(entry);
+        }
+      });
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals("[ADDED a/c/added.txt]", filtered.toString());
+  }
+
+  /**
+   * Test that mode changes and submodules are reported, and that large
+   * directories are walked in parallel.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDiffModesAndLargeDirectories() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      File file = new File(repoDir, "large/" + i + "/file.txt");
+      Files.createParentDirs(file);
+      Files.write("content " + i, file, Charsets.UTF_8);
+    }
+    executor.runGitCommand("add", "large");
+    executor.runGitCommand("commit", "-m", "Large");
+    addFileOnCurrentBranch("script.sh", "echo");
+    GitRepository repository = new GitRepository(repoDir);
+    String oldSha = repository.getLatestCommitSha("master");
+
+    executor.runGitCommand("update-index", "--chmod=+x", "script.sh");
+    executor.runGitCommand("update-index", "--add", "--cacheinfo",
+        DiffEntry.GITLINK_MODE + "," + oldSha + ",module");
+    executor.runGitCommand("commit", "-m", "Modes");
+    String newSha = repository.getLatestCommitSha("master");
+    newSha = repository.writeFile(newSha, "large/7/file.txt", "changed", "Changed");
+    newSha = repository.writeFile(newSha, "large/42/file.txt", "changed", "Changed");
+
+    List<DiffEntry> entries = repository.diff(oldSha, newSha);
+    assertEquals("[MODIFIED large/42/file.txt, MODIFIED large/7/file.txt, ADDED module, "
+        + "MODIFIED script.sh]", entries.toString());
+    DiffEntry module = entries.get(2);
+    assertTrue(module.isGitlink());
+    assertEquals(oldSha, module.getNewSha());
+    DiffEntry script = entries.get(3);
+    assertEquals(script.getOldSha(), script.getNewSha());
+    assertEquals("100644", script.getOldMode());
+    assertEquals("100755", script.getNewMode());
+    assertFalse(script.isGitlink());
+
+    final List<DiffEntry> parallelEntries = Collections.synchronizedList(Lists.<DiffEntry>newArrayList());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      repository.diff(oldSha, newSha, null, executor, new DiffListener() {
+        @Override
+        public void entryChanged(DiffEntry entry) {
+          parallelEntries.add(entry);
+        }
+      });
+    } finally {
+      executor.shutdown();
+    }
+    List<String> changes = Lists.newArrayList();
+    for (DiffEntry entry : entries) {
+      changes.add(entry.toString());
+    }
+    List<String> parallelChanges = Lists.newArrayList();
+    for (DiffEntry entry : parallelEntries) {
+      parallelChanges.add(entry.toString());
+    }
+    Collections.sort(changes);
+    Collections.sort(parallelChanges);
+    assertEquals(changes, parallelChanges);
+
+    // The walks rejected by the executor are run in the calling thread.
+    final List<String> rejectedChanges = Lists.newArrayList();
+    ExecutorService rejectingExecutor = Executors.newSingleThreadExecutor();
+    rejectingExecutor.shutdown();
+    repository.diff(oldSha, newSha, null, rejectingExecutor, new DiffListener() {
+      @Override
+      public void entryChanged(DiffEntry entry) {
+        rejectedChanges.add(entry.toString());
+      }
+    });
+    Collections.sort(rejectedChanges);
+    assertEquals(changes, rejectedChanges);
+  }
+
+  /**
+   * Test reading commits and checking the ancestry relation.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testCommitAncestry() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    String rootSha = repository.getLatestCommitSha("master");
+    String firstSha = repository.writeFile(rootSha, "a.txt", "a", "First");
+    String secondSha = repository.writeFile(firstSha, "b.txt", "b", "Second\n\nDetails");
+    String otherSha = repository.writeFile(rootSha, "c.txt", "c", "Other");
+    
+    GitCommit commit = repository.readCommit(secondSha);
+    assertEquals(secondSha, commit.getSha());
+    assertEquals(ImmutableList.of(firstSha), commit.getParents());
+    assertEquals("Second\n\nDetails\n", commit.getMessage());
+    assertTrue(commit.getAuthor().contains(" <"));
+    
+    assertTrue(repository.isAncestor(rootSha, secondSha));
+    assertTrue(repository.isAncestor(secondSha, secondSha));
+    assertFalse(repository.isAncestor(secondSha, rootSha));
+    assertFalse(repository.isAncestor(otherSha, secondSha));
+
+    // A descendant whose committer clock was two days behind.
+    GitCommit root = repository.readCommit(rootSha);
+    long rootTime = root.getCommitTime();
+    String skewedSha = executor.pipeIntoGitCommand(
+        "tree " + root.getTreeSha() + "\n"
+        + "parent " + rootSha + "\n"
+        + "author A <a@example.com> " + (rootTime - 2 * 24 * 60 * 60) + " +0000\n"
+        + "committer A <a@example.com> " + (rootTime - 2 * 24 * 60 * 60) + " +0000\n"
+        + "\n"
+        + "Skewed\n",
+        "hash-object", "-t", "commit", "-w", "--stdin").trim();
+    assertTrue(repository.isAncestor(rootSha, skewedSha));
+
+    // The negative checks are answered from memory.
+    Map<String, Long> processCounts = repository.getProcessCounts();
+    assertFalse(repository.isAncestor(secondSha, skewedSha));
+    assertFalse(repository.isAncestor(otherSha, secondSha));
+    assertFalse(repository.isAncestor(secondSha, otherSha));
+    assertEquals(processCounts, repository.getProcessCounts());
+    assertFalse(processCounts.containsKey("merge-base"));
+
+    // The abbreviated SHAs are resolved once.
+    String shortSha = secondSha.substring(0, 10);
+    assertEquals(secondSha, repository.readCommit(shortSha).getSha());
+    processCounts = repository.getProcessCounts();
+    assertEquals(secondSha, repository.readCommit(shortSha).getSha());
+    assertEquals(processCounts, repository.getProcessCounts());
+  }
+
+  /**
+   * Test that writing the same content again does not create a new commit.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testUnchangedWrite() throws Exception {
+    addFileOnCurrentBranch(mkUnicode("f-1/x file.xml"), mkUnicode("<root>-<\root>"));
+    addFileOnCurrentBranch("f-1/run.sh", "#!/bin/sh");
+    executor.runGitCommand("update-index", "--chmod=+x", "f-1/run.sh");
+    executor.runGitCommand("commit", "-m", "Made executable");
+    
+    GitRepository repository = new GitRepository(repoDir);
+    String branchSha = repository.getLatestCommitSha("master");
+    assertEquals(branchSha, repository.writeFile(branchSha, 
+        mkUnicode("f-1/x file.xml"), mkUnicode("<root>-<\root>"), "Same content"));
+    assertEquals(branchSha, repository.deleteFile(branchSha, "f-1/missing.txt", "Nothing"));
+    
+    // The tree SHAs computed in-process should match the ones computed by git.
+    for (String treeish : ImmutableList.of("master^{tree}", "master:f-1")) {
+      String treeSha = executor.runGitCommand("rev-parse", treeish).trim();
+      String treeContent = executor.runGitCommand("ls-tree", treeSha).trim();
+      assertEquals(treeSha, new GitTree(treeContent.split("\n")).computeSha());
+    }
+    String newSha = repository.writeFile(branchSha, "f-2/new.txt", "new", "Added");
+    String newTreeSha = repository.readCommit(newSha).getTreeSha();
+    executor.runGitCommand("read-tree", newSha);
+    assertEquals(newTreeSha, executor.runGitCommand("write-tree").trim());
+    executor.runGitCommand("fsck", "--strict");
+  }
+
+  /**
+   * Test reading many files at once.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testReadFiles() throws Exception {
+    String content = mkUnicode("<root>-<\root>");
+    addFileOnCurrentBranch(mkUnicode("folder-1/file.xml"), content);
+    addFileOnCurrentBranch("folder-2/sub/other.txt", "other");
+    
+    GitRepository repository = new GitRepository(repoDir);
+    String masterSha = repository.getLatestCommitSha("master");
+    Map<String, String> contents = repository.readFiles(masterSha, ImmutableList.of(
+        "folder-2/sub/other.txt", "missing.txt", mkUnicode("folder-1/file.xml"), 
+        "folder-2", "README.md"));
+    
+    assertEquals(ImmutableList.of("folder-2/sub/other.txt", "missing.txt", 
+        mkUnicode("folder-1/file.xml"), "folder-2", "README.md"), 
+        Lists.newArrayList(contents.keySet()));
+    assertEquals("other", contents.get("folder-2/sub/other.txt"));
+    assertEquals(content, contents.get(mkUnicode("folder-1/file.xml")));
+    assertEquals("text", contents.get("README.md"));
+    assertNull(contents.get("missing.txt"));
+    assertNull(contents.get("folder-2"));
+  }
+
+  /**
+   * Test reading through a snapshot that is derived incrementally when the 
+   * branch advances.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testBranchSnapshot() throws Exception {
+    addFileOnCurrentBranch("f-1/a.txt", "a");
+    addFileOnCurrentBranch("f-1/f-2/b.txt", "b");
+    
+    GitRepository repository = new GitRepository(repoDir);
+    RepositorySnapshot snapshot = repository.getBranchSnapshot("master");
+    assertEquals(ImmutableList.of("a.txt", "f-2"), snapshot.listFiles("f-1/"));
+    assertEquals("b", snapshot.readFile("f-1/f-2/b.txt"));
+    assertFalse(snapshot.exists("f-1/c.txt"));
+    
+    String newSha = repository.writeFile(snapshot.getCommitSha(), "f-1/f-3/c.txt", "c", "Added");
+    repository.moveBranch("master", newSha);
+    newSha = repository.deleteFile(newSha, "f-1/a.txt", "Deleted");
+    repository.moveBranch("master", newSha);
+    
+    RepositorySnapshot newSnapshot = repository.getBranchSnapshot("master");
+    assertEquals(newSha, newSnapshot.getCommitSha());
+    assertEquals(ImmutableList.of("f-2", "f-3"), newSnapshot.listFiles("f-1"));
+    assertEquals("c", newSnapshot.readFile("f-1/f-3/c.txt"));
+    assertEquals("b", newSnapshot.readFile("f-1/f-2/b.txt"));
+    assertFalse(newSnapshot.exists("f-1/a.txt"));
+    // The old snapshot is unchanged.
+    assertTrue(snapshot.exists("f-1/a.txt"));
+    
+    // The fully indexed snapshot should agree with the derived one.
+    RepositorySnapshot fullSnapshot = repository.snapshot(newSha);
+    fullSnapshot.buildFullIndex();
+    assertEquals(newSnapshot.getEntry("f-1").getSha(), fullSnapshot.getEntry("f-1").getSha());
+    assertEquals(ImmutableList.of("f-2", "f-3"), fullSnapshot.listFiles("f-1"));
+    assertEquals(ImmutableList.of("README.md", "f-1"), fullSnapshot.listFiles(""));
+    assertFalse(fullSnapshot.exists("f-1/a.txt"));
+  }
+
+  /**
+   * Test advancing a snapshot over a directory replaced by a file, and back.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testBranchSnapshotTypeChange() throws Exception {
+    addFileOnCurrentBranch("x/a.txt", "a");
+    GitRepository repository = new GitRepository(repoDir);
+    String dirSha = repository.getLatestCommitSha("master");
+    RepositorySnapshot dirSnapshot = repository.snapshot(dirSha);
+    dirSnapshot.buildFullIndex();
+    assertEquals(ImmutableList.of("a.txt"), dirSnapshot.listFiles("x"));
+
+    String fileSha = repository.deleteFile(dirSha, "x/a.txt", "Deleted");
+    fileSha = repository.writeFile(fileSha, "x", "x", "Added");
+    RepositorySnapshot fileSnapshot = dirSnapshot.advanceTo(fileSha);
+    assertEquals("100644", fileSnapshot.getEntry("x").getMode());
+    assertEquals("x", fileSnapshot.readFile("x"));
+    assertEquals(ImmutableList.of("README.md", "x"), fileSnapshot.listFiles(""));
+    assertFalse(fileSnapshot.exists("x/a.txt"));
+
+    RepositorySnapshot newDirSnapshot = fileSnapshot.advanceTo(dirSha);
+    assertEquals("040000", newDirSnapshot.getEntry("x").getMode());
+    assertEquals("a", newDirSnapshot.readFile("x/a.txt"));
+    assertEquals(ImmutableList.of("a.txt"), newDirSnapshot.listFiles("x"));
+    assertEquals(ImmutableList.of("README.md", "x"), newDirSnapshot.listFiles(""));
+  }
+
+  /**
+   * Test exporting a folder to disk, then updating the export incrementally.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testExportTree() throws Exception {
+    addFileOnCurrentBranch(mkUnicode("f-1/a.txt"), mkUnicode("a-"));
+    addFileOnCurrentBranch(mkUnicode("f-1/sub/b.txt"), "b");
+    addFileOnCurrentBranch("other/c.txt", "c");
+    
+    GitRepository repository = new GitRepository(repoDir);
+    String sha = repository.getLatestCommitSha("master");
+    File target = Files.createTempDir();
+    try {
+      TreeExport export = repository.exportTree(sha, mkUnicode("f-1"), target.toPath());
+      assertEquals(2, export.getFilesWritten());
+      assertEquals(mkUnicode("a-"), Files.toString(new File(target, "a.txt"), Charsets.UTF_8));
+      assertEquals("b", Files.toString(new File(target, "sub/b.txt"), Charsets.UTF_8));
+      assertFalse(new File(target, "c.txt").exists());
+      
+      // Persist the manifest between exports.
+      File manifestFile = File.createTempFile("manifest", ".bin");
+      export.saveManifest(manifestFile);
+      TreeExport previousExport = TreeExport.loadManifest(manifestFile);
+      manifestFile.delete();
+      
+      String newSha = repository.writeFile(sha, mkUnicode("f-1/sub/d.txt"), "d", "Added");
+      newSha = repository.deleteFile(newSha, mkUnicode("f-1/a.txt"), "Deleted");
+      TreeExport update = repository.exportTree(newSha, mkUnicode("f-1/"), target.toPath(), previousExport);
+      assertEquals(1, update.getFilesWritten());
+      assertEquals(1, update.getFilesSkipped());
+      assertEquals(1, update.getFilesDeleted());
+      assertEquals(1, update.getBytesWritten());
+      assertFalse(new File(target, "a.txt").exists());
+      assertEquals("d", Files.toString(new File(target, "sub/d.txt"), Charsets.UTF_8));
+    } finally {
+      FileUtils.deleteDirectory(target);
+    }
+  }
+
+  /**
+   * Test that an incremental export removes the directories it emptied, and
+   * that executable files are executable by everyone.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testExportTreeCleanup() throws Exception {
+    addFileOnCurrentBranch("a/b/c.txt", "c");
+    addFileOnCurrentBranch("run.sh", "#!/bin/sh");
+    executor.runGitCommand("update-index", "--chmod=+x", "run.sh");
+    executor.runGitCommand("commit", "-m", "Made executable");
+
+    GitRepository repository = new GitRepository(repoDir);
+    String sha = repository.getLatestCommitSha("master");
+    File target = Files.createTempDir();
+    try {
+      TreeExport export = repository.exportTree(sha, "", target.toPath());
+      Set<PosixFilePermission> permissions =
+          java.nio.file.Files.getPosixFilePermissions(new File(target, "run.sh").toPath());
+      assertTrue(permissions.contains(PosixFilePermission.OTHERS_EXECUTE));
+
+      String newSha = repository.deleteFile(sha, "a/b/c.txt", "Deleted");
+      repository.exportTree(newSha, "", target.toPath(), export);
+      assertFalse(new File(target, "a").exists());
+      assertTrue(new File(target, "run.sh").exists());
+    } finally {
+      FileUtils.deleteDirectory(target);
+    }
+  }
+
+  /**
+   * Test that a tree cannot write outside the directory it is exported to.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testExportTreeUnsafePath() throws Exception {
+    String blobSha = executor.pipeIntoGitCommand("evil", "hash-object", "-w", "--stdin").trim();
+    String subtreeSha = executor.pipeIntoGitCommand(
+        "100644 blob " + blobSha + "\tevil.txt\n", "mktree").trim();
+    String treeSha = executor.pipeIntoGitCommand(
+        "040000 tree " + subtreeSha + "\t..\n", "mktree").trim();
+    String sha = executor.runGitCommand("commit-tree", treeSha, "-m", "Crafted").trim();
+
+    GitRepository repository = new GitRepository(repoDir);
+    File parent = Files.createTempDir();
+    try {
+      File target = new File(parent, "target");
+      assertTrue(target.mkdir());
+      try {
+        repository.exportTree(sha, "", target.toPath());
+        fail("The tree escapes the target directory");
+      } catch (IOException e) {
+        // Expected.
+      }
+      assertFalse(new File(parent, "evil.txt").exists());
+    } finally {
+      FileUtils.deleteDirectory(parent);
+    }
+  }
+
+  /**
+   * Test the notifications about branch changes.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testWatchBranches() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    String masterSha = repository.getLatestCommitSha("master");
+    final BlockingQueue<BranchChangeEvent> events = new LinkedBlockingQueue<BranchChangeEvent>();
+    BranchWatcher watcher = repository.watchBranches(new BranchListener() {
+      @Override
+      public void branchChanged(BranchChangeEvent event) {
+        events.add(event);
+      }
+    });
+    try {
+      // In-process branch move.
+      String newSha = repository.writeFile(masterSha, "a.txt", "a", "Added");
+      repository.moveBranch("master", newSha);
+      assertEquals("master: " + masterSha + " -> " + newSha, 
+          events.poll(10, TimeUnit.SECONDS).toString());
+      
+      // Branch created by another process.
+      executor.runGitCommand("branch", "feature/x", masterSha);
+      assertEquals("feature/x: null -> " + masterSha, 
+          events.poll(10, TimeUnit.SECONDS).toString());
+      
+      // Branch deleted by another process.
+      executor.runGitCommand("branch", "-D", "feature/x");
+      assertEquals("feature/x: " + masterSha + " -> null", 
+          events.poll(10, TimeUnit.SECONDS).toString());
+    } finally {
+      watcher.close();
+    }
+    assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Test that the branches are still watched after the listener failed.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testWatchBranchesListenerFailure() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    final String masterSha = repository.getLatestCommitSha("master");
+    final BlockingQueue<BranchChangeEvent> events = new LinkedBlockingQueue<BranchChangeEvent>();
+    BranchWatcher watcher = repository.watchBranches(new BranchListener() {
+      @Override
+      public void branchChanged(BranchChangeEvent event) {
+        events.add(event);
+        if (event.getBranch().equals("feature/x")) {
+          throw new IllegalStateException("Listener failure");
+        }
+      }
+    });
+    try {
+      executor.runGitCommand("branch", "feature/x", masterSha);
+      assertEquals("feature/x: null -> " + masterSha,
+          events.poll(10, TimeUnit.SECONDS).toString());
+
+      executor.runGitCommand("branch", "feature/y", masterSha);
+      assertEquals("feature/y: null -> " + masterSha,
+          events.poll(10, TimeUnit.SECONDS).toString());
+    } finally {
+      watcher.close();
+    }
+  }
+
+  /**
+   * Test updating many branches in a single transaction.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testRefTransaction() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    String rootSha = repository.getLatestCommitSha("master");
+    executor.runGitCommand("branch", "release-1");
+    executor.runGitCommand("branch", "release-0");
+    String firstSha = repository.writeFile(rootSha, "a.txt", "a", "First");
+    String secondSha = repository.writeFile(firstSha, "b.txt", "b", "Second");
+    String otherSha = repository.writeFile(rootSha, "c.txt", "c", "Other");
+    
+    // A transaction with a non fast-forward update is not applied at all.
+    assertFalse(repository.newRefTransaction()
+        .update("master", secondSha, rootSha)
+        .update("release-1", otherSha, firstSha)
+        .commit());
+    assertEquals(rootSha, repository.getLatestCommitSha("master"));
+    
+    // The expected values are checked.
+    assertFalse(repository.newRefTransaction()
+        .update("master", secondSha, rootSha)
+        .create("release-0", secondSha)
+        .commit());
+    assertEquals(rootSha, repository.getLatestCommitSha("master"));
+    
+    assertTrue(repository.newRefTransaction()
+        .update("master", secondSha, rootSha)
+        .update("release-1", otherSha, rootSha)
+        .create("release-2", firstSha)
+        .delete("release-0", rootSha)
+        .commit());
+    assertEquals(secondSha, repository.getLatestCommitSha("master"));
+    assertEquals(otherSha, repository.getLatestCommitSha("release-1"));
+    assertEquals(firstSha, repository.getLatestCommitSha("release-2"));
+    assertNull(repository.getLatestCommitSha("release-0"));
+
+    // The content index of an updated branch is refreshed.
+    ContentIndex contentIndex = repository.indexBranchContent("release-2");
+    assertTrue(repository.newRefTransaction()
+        .update("release-2", secondSha, firstSha)
+        .commit());
+    assertEquals(secondSha, contentIndex.getCommitSha());
+
+    // Failures other than a concurrent change are reported.
+    try {
+      repository.newRefTransaction()
+          .create("release-3", Strings.repeat("1", 40))
+          .commit();
+      fail("The commit does not exist");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertNull(repository.getLatestCommitSha("release-3"));
+  }
+
+  /**
+   * Test the content search on a branch.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testContentIndex() throws Exception {
+    addFileOnCurrentBranch("src/a.txt", "int fooBar = 1;");
+    addFileOnCurrentBranch("src/b.txt", "fooBaz()");
+    GitRepository repository = new GitRepository(repoDir);
+    ContentIndex index = repository.indexBranchContent("master");
+    assertEquals(Arrays.asList("src/a.txt", "src/b.txt"), index.search("foo"));
+    assertEquals(Arrays.asList("src/a.txt"), index.search("fooBar"));
+    assertEquals(Collections.emptyList(), index.search("missing"));
+
+    String sha = repository.getLatestCommitSha("master");
+    String newSha = repository.writeFile(sha, "src/c.txt", mkUnicode("fooBar-"), "Added");
+    assertTrue(repository.moveBranch("master", newSha));
+    newSha = repository.deleteFile(newSha, "src/a.txt", "Deleted");
+    assertTrue(repository.moveBranch("master", newSha));
+    assertEquals(newSha, index.getCommitSha());
+    assertEquals(Arrays.asList("src/c.txt"), index.search(mkUnicode("Bar-")));
+    assertEquals(Arrays.asList("src/b.txt", "src/c.txt"), index.search("foo"));
+
+    // The head of the branch is not read again by every search.
+    long showRefCount = repository.getProcessCounts().get("show-ref");
+    index.search("foo");
+    assertEquals(showRefCount, (long) repository.getProcessCounts().get("show-ref"));
+
+    // Changes made by other processes are picked up by a later search.
+    String otherSha = new GitRepository(repoDir).writeFile(newSha, "d.txt", "fooBar", "Added");
+    executor.runGitCommand("update-ref", "refs/heads/master", otherSha);
+    Thread.sleep(ContentIndex.MAX_STALENESS_MILLIS);
+    assertEquals(Arrays.asList("d.txt", "src/c.txt"), index.search("fooBar"));
+
+    // The commits of the submodules are not indexed.
+    executor.runGitCommand("reset", "--hard", otherSha);
+    executor.runGitCommand("update-index", "--add", "--cacheinfo",
+        DiffEntry.GITLINK_MODE + "," + sha + ",sub");
+    executor.runGitCommand("commit", "-m", "Added a submodule");
+    Thread.sleep(ContentIndex.MAX_STALENESS_MILLIS);
+    assertEquals(Collections.emptyList(), index.search("Added: src/b.txt"));
+  }
+
+  /**
+   * Test that a failed refresh of the content index does not fail the move
+   * of the branch, and that the next search refreshes the index.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testContentIndexRefreshFailure() throws Exception {
+    addFileOnCurrentBranch("a.txt", "fooBar");
+    GitRepository repository = new GitRepository(repoDir);
+    String sha = repository.getLatestCommitSha("master");
+    ContentIndex index = repository.indexBranchContent("master");
+    String newSha = repository.writeFile(sha, "a.txt", "fooBaz", "Changed");
+
+    // The indexed tree cannot be read to compute the changes.
+    String treeSha = repository.readCommit(sha).getTreeSha();
+    File objectFile = new File(repoDir,
+        ".git/objects/" + treeSha.substring(0, 2) + "/" + treeSha.substring(2));
+    byte[] object = Files.toByteArray(objectFile);
+    assertTrue(objectFile.delete());
+    assertTrue(repository.moveBranch("master", newSha));
+    assertEquals(newSha, repository.getLatestCommitSha("master"));
+    assertEquals(sha, index.getCommitSha());
+
+    Files.write(object, objectFile);
+    assertEquals(Arrays.asList("a.txt"), index.search("fooBaz"));
+    assertEquals(newSha, index.getCommitSha());
+  }
+
+  /**
+   * Test the directory listing with the last commit of every entry.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testListFilesWithLastChange() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    addFileOnCurrentBranch(mkUnicode("dir-/a.txt"), "a");
+    String aSha = repository.getLatestCommitSha("master");
+    addFileOnCurrentBranch(mkUnicode("dir-/sub/b.txt"), "b");
+    String bSha = repository.getLatestCommitSha("master");
+    addFileOnCurrentBranch("other.txt", "other");
+
+    List<ListingEntry> entries = repository.listFilesWithLastChange("master", mkUnicode("dir-"));
+    assertEquals(2, entries.size());
+    assertEquals("a.txt", entries.get(0).getName());
+    assertEquals(aSha, entries.get(0).getLastCommit().getSha());
+    assertEquals("sub", entries.get(1).getName());
+    assertEquals(bSha, entries.get(1).getLastCommit().getSha());
+
+    String headSha = repository.getLatestCommitSha("master");
+    String newSha = repository.writeFile(headSha, mkUnicode("dir-/sub/c.txt"), "c", "Added c");
+    assertTrue(repository.moveBranch("master", newSha));
+
+    // The index is extended from the one saved by the previous repository object.
+    entries = new GitRepository(repoDir).listFilesWithLastChange("master", mkUnicode("dir-"));
+    assertEquals(aSha, entries.get(0).getLastCommit().getSha());
+    assertEquals(newSha, entries.get(1).getLastCommit().getSha());
+    assertEquals("Added c", entries.get(1).getLastCommit().getMessage().trim());
+    assertNull(repository.listFilesWithLastChange("missing", "dir"));
+  }
+
+  /**
+   * Test that the changes brought by merges are credited to the merge commits.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testListFilesWithLastChangeAfterMerges() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    String baseSha = repository.getLatestCommitSha("master");
+    baseSha = repository.writeFile(baseSha, "dir/kept.txt", "kept", "Base");
+    String oursSha = repository.writeFile(baseSha, "dir/ours.txt", "ours", "Ours");
+    String theirsAddedSha = repository.writeFile(baseSha, "dir/theirs.txt", "theirs", "Theirs");
+    String theirsSha = repository.writeFile(theirsAddedSha, "dir/kept.txt", "discarded", "Discarded");
+    // A merge which keeps our version of kept.txt.
+    String mergedTreeSha = repository.writeFile(oursSha, "dir/theirs.txt", "theirs", "Tree");
+    String mergeSha = executor.runGitCommand("commit-tree", "-m", "Merged", "-p", oursSha,
+        "-p", theirsSha, repository.readCommit(mergedTreeSha).getTreeSha()).trim();
+    executor.runGitCommand("update-ref", "refs/heads/master", mergeSha);
+
+    List<ListingEntry> entries = repository.listFilesWithLastChange("master", "dir");
+    assertEquals(3, entries.size());
+    assertEquals("kept.txt", entries.get(0).getName());
+    assertEquals(baseSha, entries.get(0).getLastCommit().getSha());
+    assertEquals("ours.txt", entries.get(1).getName());
+    assertEquals(oursSha, entries.get(1).getLastCommit().getSha());
+    assertEquals("theirs.txt", entries.get(2).getName());
+    assertEquals(mergeSha, entries.get(2).getLastCommit().getSha());
+
+    // The branch is fast-forwarded to a merge into their branch, so the
+    // index is rebuilt for the first-parent history of their branch.
+    String otherMergeSha = executor.runGitCommand("commit-tree", "-m", "Merged back",
+        "-p", theirsSha, "-p", mergeSha, repository.readCommit(mergeSha).getTreeSha()).trim();
+    executor.runGitCommand("update-ref", "refs/heads/master", otherMergeSha);
+    entries = repository.listFilesWithLastChange("master", "dir");
+    assertEquals(otherMergeSha, entries.get(0).getLastCommit().getSha());
+    assertEquals(otherMergeSha, entries.get(1).getLastCommit().getSha());
+    assertEquals(theirsAddedSha, entries.get(2).getLastCommit().getSha());
+  }
+
+  /**
+   * Test the size queries and the range reads.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testReadRange() throws Exception {
+    String content = mkUnicode("0123456789-abc");
+    addFileOnCurrentBranch("range.txt", content);
+    GitRepository repository = new GitRepository(repoDir);
+    String sha = repository.getLatestCommitSha("master");
+    byte[] bytes = content.getBytes(Charsets.UTF_8);
+
+    assertEquals(bytes.length, repository.size(sha, "range.txt"));
+    assertEquals("0123", new String(repository.readRange(sha, "range.txt", 0, 4), Charsets.UTF_8));
+    assertEquals("56", new String(repository.readRange(sha, "range.txt", 5, 2), Charsets.UTF_8));
+    // The range is truncated at the end of the file.
+    assertEquals(mkUnicode("-abc"),
+        new String(repository.readRange(sha, "range.txt", 10, 100), Charsets.UTF_8));
+    assertEquals(0, repository.readRange(sha, "range.txt", 100, 10).length);
+    try {
+      repository.readRange(sha, "missing.txt", 0, 10);
+      fail("Missing files cannot be read");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Test the move, copy and directory deletion operations.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testMoveAndCopy() throws Exception {
+    addFileOnCurrentBranch(mkUnicode("src-/main/a.txt"), "a");
+    addFileOnCurrentBranch(mkUnicode("src-/main/b.txt"), "b");
+    new File(repoDir, mkUnicode("src-/main/b.txt")).setExecutable(true);
+    executor.runGitCommand("add", mkUnicode("src-/main/b.txt"));
+    executor.runGitCommand("commit", "-m", "Executable");
+    GitRepository repository = new GitRepository(repoDir);
+    String sha = repository.getLatestCommitSha("master");
+    String mainTreeSha = executor.runGitCommand("rev-parse", sha + ":" + mkUnicode("src-/main")).trim();
 
+    // Moving a whole directory keeps its tree and removes the empty parent.
+    String movedSha = repository.move(sha, mkUnicode("src-/main"), "lib/main", "Moved");
+    assertEquals(mainTreeSha, executor.runGitCommand("rev-parse", movedSha + ":lib/main").trim());
+    assertEquals(ImmutableList.of("README.md", "lib"),
+        splitNames(executor.runGitCommand("ls-tree", "--name-only", movedSha)));
+    assertEquals(ImmutableList.of(sha), repository.readCommit(movedSha).getParents());
+
+    String copiedSha = repository.copy(movedSha, "lib/main/b.txt", "b.txt", "Copied");
+    assertEquals("b", repository.readFile(copiedSha, "b.txt"));
+    assertTrue(executor.runGitCommand("ls-tree", copiedSha, "b.txt").startsWith("100755"));
+    assertEquals("b", repository.readFile(copiedSha, "lib/main/b.txt"));
+
+    try {
+      repository.move(copiedSha, "b.txt", "lib/main/a.txt", "Overwrite");
+      fail("The target exists");
+    } catch (FileAlreadyExistsException e) {
+      // Expected.
+    }
+    try {
+      repository.copy(copiedSha, "missing.txt", "other.txt", "Copy");
+      fail("The source does not exist");
+    } catch (NoSuchFileException e) {
+      // Expected.
+    }
+
+    String deletedSha = repository.deleteDirectory(copiedSha, "lib", "Deleted");
+    assertEquals(ImmutableList.of("README.md", "b.txt"),
+        splitNames(executor.runGitCommand("ls-tree", "--name-only", deletedSha)));
+    assertEquals(deletedSha, repository.deleteDirectory(deletedSha, "lib", "Deleted again"));
+  }
+
+  /**
+   * Splits the output of <code>ls-tree --name-only</code>.
+   *
+   * @param output The output.
+   *
+   * @return The names.
+   */
+  private static List<String> splitNames(String output) {
+    return ImmutableList.copyOf(output.trim().split("\n"));
+  }
+
+  /**
+   * Test the replication of the branch moves to a mirror.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testReplication() throws Exception {
+    File mirrorDir = Files.createTempDir();
+    try {
+      GitCommandExecutor mirrorExecutor = new GitCommandExecutor(mirrorDir);
+      mirrorExecutor.runGitCommand("init", "--bare");
+
+      GitRepository repository = new GitRepository(repoDir);
+      BranchReplicator replicator = repository.replicateTo(mirrorDir.getAbsolutePath());
+      try {
+        String sha = repository.getLatestCommitSha("master");
+        for (int i = 0; i < 5; i++) {
+          String newSha = repository.writeFile(sha, "f" + i + ".txt", "" + i, "Commit " + i);
+          assertTrue(repository.moveBranch("master", newSha));
+          sha = newSha;
+        }
+
+        assertTrue(replicator.awaitReplication(TimeUnit.SECONDS.toMillis(30)));
+        assertEquals(sha, mirrorExecutor.runGitCommand("rev-parse", "refs/heads/master").trim());
+        assertEquals(0, replicator.getReplicationLagMillis());
+        assertEquals(0, replicator.getFailedPushCount());
+        // The moves made during a push are coalesced.
+        assertTrue(replicator.getReplicatedUpdateCount() <= 5);
+        assertTrue(replicator.getPushCount() >= 1);
+      } finally {
+        replicator.close();
+      }
+    } finally {
+      FileUtils.deleteDirectory(mirrorDir);
+    }
+  }
+
+  /**
+   * Test that a branch rejected by a mirror does not hold back the others.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testReplicationRejectedBranch() throws Exception {
+    File mirrorDir = Files.createTempDir();
+    try {
+      GitCommandExecutor mirrorExecutor = new GitCommandExecutor(mirrorDir);
+      mirrorExecutor.runGitCommand("init", "--bare");
+
+      GitRepository repository = new GitRepository(repoDir);
+      String sha = repository.getLatestCommitSha("master");
+      // The "bad/x" branch cannot be created next to the "bad" branch.
+      executor.runGitCommand("push", "--quiet", mirrorDir.getAbsolutePath(),
+          sha + ":refs/heads/bad");
+      BranchReplicator replicator = repository.replicateTo(mirrorDir.getAbsolutePath());
+      try {
+        replicator.enqueue("bad/x", sha);
+        String newSha = repository.writeFile(sha, "f.txt", "f", "Commit");
+        assertTrue(repository.moveBranch("master", newSha));
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!newSha.equals(mirrorExecutor.runGitCommand("for-each-ref",
+            "--format=%(objectname)", "refs/heads/master").trim())) {
+          assertTrue(System.currentTimeMillis() < deadline);
+          Thread.sleep(50);
+        }
+        assertTrue(replicator.getFailedPushCount() > 0);
+        assertNotNull(replicator.getLastFailure());
+        assertEquals(0, replicator.getAbandonedUpdateCount());
+      } finally {
+        replicator.close();
+      }
+    } finally {
+      FileUtils.deleteDirectory(mirrorDir);
+    }
+  }
+
+  /**
+   * Test starting a repository with the caches saved by another one.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testWarmStartCache() throws Exception {
+    addFileOnCurrentBranch("f-1/a.txt", "a");
+    addFileOnCurrentBranch("f-1/f-2/b.txt", "b");
+    File cacheFile = new File(repoDir, ".git/gitj/cache");
+
+    GitRepository repository = new GitRepository(repoDir);
+    String sha = repository.getLatestCommitSha("master");
+    repository.getBranchSnapshot("master").buildFullIndex();
+    GitCommit commit = repository.readCommit(sha);
+    repository.saveCache(cacheFile);
+
+    GitRepository warmRepository = new GitRepository(repoDir);
+    assertTrue(warmRepository.loadCache(cacheFile));
+    assertEquals(commit.getMessage(), warmRepository.readCommit(sha).getMessage());
+    assertEquals(commit.getParents(), warmRepository.readCommit(sha).getParents());
+    RepositorySnapshot snapshot = warmRepository.getBranchSnapshot("master");
+    assertEquals(ImmutableList.of("a.txt", "f-2"), snapshot.listFiles("f-1"));
+    assertEquals(repository.getBranchSnapshot("master").getEntry("f-1/f-2/b.txt"),
+        snapshot.getEntry("f-1/f-2/b.txt"));
+    // Neither the trees nor the commit were read again.
+    assertFalse(warmRepository.getProcessCounts().containsKey("ls-tree"));
+    assertFalse(warmRepository.getProcessCounts().containsKey("cat-file"));
+
+    // A stale snapshot is advanced to the current head.
+    addFileOnCurrentBranch("f-1/c.txt", "c");
+    GitRepository staleRepository = new GitRepository(repoDir);
+    assertTrue(staleRepository.loadCache(cacheFile));
+    snapshot = staleRepository.getBranchSnapshot("master");
+    assertEquals(staleRepository.getLatestCommitSha("master"), snapshot.getCommitSha());
+    assertEquals(ImmutableList.of("a.txt", "c.txt", "f-2"), snapshot.listFiles("f-1"));
+
+    // Corrupt and missing files are ignored.
+    Files.write(new byte[] {1, 2, 3}, cacheFile);
+    assertFalse(new GitRepository(repoDir).loadCache(cacheFile));
+    assertFalse(new GitRepository(repoDir).loadCache(new File(repoDir, "missing")));
+  }
+
+  /**
+   * Test the blame of a file, and the reuse of the blame of the parent commit.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testBlame() throws Exception {
+    String path = mkUnicode("blame-.txt");
+    addFileOnCurrentBranch(path, "a\nb\nc\n");
+    GitRepository repository = new GitRepository(repoDir);
+    String firstSha = repository.getLatestCommitSha("master");
+    String secondSha = repository.writeFile(firstSha, path, "a\nB\nc\nd\n", "Changed");
+
+    List<BlameRange> ranges = repository.blame(secondSha, path);
+    List<String> lines = Lists.newArrayList();
+    for (BlameRange range : ranges) {
+      assertEquals(path, range.getOriginalPath());
+      for (int i = 0; i < range.getLineCount(); i++) {
+        lines.add((range.getStartLine() + i) + ":" 
+            + (range.getCommitSha().equals(firstSha) ? "first" : "second"));
+      }
+    }
+    assertEquals(ImmutableList.of("1:first", "2:second", "3:first", "4:second"), lines);
+
+    // An unrelated change reuses the blame of the parent.
+    String thirdSha = repository.writeFile(secondSha, "other.txt", "other", "Other");
+    long blameCount = repository.getProcessCounts().get("blame");
+    assertEquals(ranges.toString(), repository.blame(thirdSha, path).toString());
+    assertEquals(ranges.toString(), repository.blame(secondSha, path).toString());
+    assertEquals(blameCount, (long) repository.getProcessCounts().get("blame"));
+
+    // A change of the file runs blame again.
+    String fourthSha = repository.writeFile(thirdSha, path, "a\n", "Truncated");
+    assertEquals(1, repository.blame(fourthSha, path).size());
+    assertEquals(blameCount + 1, (long) repository.getProcessCounts().get("blame"));
+  }
+
+  /**
+   * Test the merge of two commits, with and without conflicts.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testMerge() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    String baseSha = repository.getLatestCommitSha("master");
+    baseSha = repository.writeFile(baseSha, "m.txt", "1\n2\n3\n4\n5\n", "Base");
+    baseSha = repository.writeFile(baseSha, "deleted.txt", "deleted", "Base");
+    baseSha = repository.writeFile(baseSha, "dir/c.txt", "c", "Base");
+    baseSha = repository.writeFile(baseSha, "dir/d.txt", "d", "Base");
+
+    String oursSha = repository.writeFile(baseSha, "m.txt", "one\n2\n3\n4\n5\n", "Ours");
+    oursSha = repository.writeFile(oursSha, "ours.txt", "ours", "Ours");
+    String theirsSha = repository.writeFile(baseSha, "m.txt", "1\n2\n3\n4\nfive\n", "Theirs");
+    theirsSha = repository.deleteFile(theirsSha, "deleted.txt", "Theirs");
+    theirsSha = repository.writeFile(theirsSha, "dir/c.txt", "C", "Theirs");
+
+    MergeResult result = repository.merge(oursSha, theirsSha, "Merged");
+    assertTrue(result.isSuccessful());
+    String mergedSha = result.getCommitSha();
+    assertEquals(ImmutableList.of(oursSha, theirsSha), repository.readCommit(mergedSha).getParents());
+    assertEquals("one\n2\n3\n4\nfive\n", repository.readFile(mergedSha, "m.txt"));
+    assertEquals("ours", repository.readFile(mergedSha, "ours.txt"));
+    assertEquals("C", repository.readFile(mergedSha, "dir/c.txt"));
+    assertEquals("d", repository.readFile(mergedSha, "dir/d.txt"));
+    assertFalse(repository.snapshot(mergedSha).exists("deleted.txt"));
+    // Their commit is already merged.
+    assertEquals(mergedSha, repository.merge(mergedSha, theirsSha, "Again").getCommitSha());
+
+    String conflictingOursSha = repository.writeFile(oursSha, "m.txt", "one\n2\nX\n4\n5\n", "Ours");
+    conflictingOursSha = repository.deleteFile(conflictingOursSha, "dir/c.txt", "Ours");
+    String conflictingTheirsSha = repository.writeFile(theirsSha, "m.txt", "1\n2\nY\n4\nfive\n", "Theirs");
+    result = repository.merge(conflictingOursSha, conflictingTheirsSha, "Conflict");
+    assertFalse(result.isSuccessful());
+    assertNull(result.getCommitSha());
+    assertEquals(2, result.getConflicts().size());
+    MergeConflict deleteConflict = result.getConflicts().get(0);
+    assertEquals("dir/c.txt", deleteConflict.getPath());
+    assertEquals(MergeConflict.ConflictType.MODIFY_DELETE, deleteConflict.getConflictType());
+    assertNull(deleteConflict.getOursSha());
+    MergeConflict contentConflict = result.getConflicts().get(1);
+    assertEquals("m.txt", contentConflict.getPath());
+    assertEquals(MergeConflict.ConflictType.CONTENT, contentConflict.getConflictType());
+    assertEquals(executor.runGitCommand("rev-parse", baseSha + ":m.txt").trim(), 
+        contentConflict.getBaseSha());
+  }
+
+  /**
+   * Test computing the merge base of two commits.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testMergeBase() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    String baseSha = repository.getLatestCommitSha("master");
+    String oursSha = baseSha;
+    for (int i = 0; i < 5; i++) {
+      oursSha = repository.writeFile(oursSha, "ours.txt", "ours " + i, "Ours");
+    }
+    String theirsSha = repository.writeFile(baseSha, "theirs.txt", "theirs", "Theirs");
+
+    CommitGraph commitGraph = new CommitGraph(executor);
+    assertEquals(baseSha, commitGraph.getMergeBase(oursSha, theirsSha));
+    assertEquals(baseSha, commitGraph.getMergeBase(theirsSha, oursSha));
+    assertEquals(theirsSha, commitGraph.getMergeBase(theirsSha, theirsSha));
+    assertEquals(baseSha, commitGraph.getMergeBase(baseSha, oursSha));
+
+    // Criss-cross merges have two best common ancestors.
+    String oursMergeSha = repository.merge(oursSha, theirsSha, "Ours merge").getCommitSha();
+    String theirsMergeSha = repository.merge(theirsSha, oursSha, "Theirs merge").getCommitSha();
+    String mergeBase = commitGraph.getMergeBase(oursMergeSha, theirsMergeSha);
+    assertTrue(mergeBase, mergeBase.equals(oursSha) || mergeBase.equals(theirsSha));
+
+    String orphanSha = executor.runGitCommand("commit-tree", "-m", "Orphan",
+        repository.readCommit(baseSha).getTreeSha()).trim();
+    assertNull(commitGraph.getMergeBase(oursSha, orphanSha));
+  }
+
+  /**
+   * Test that a pipelined read stops when the object handler fails, even if 
+   * the requests fill the input pipe of the process.
+   *
+   * @throws Exception
+   */
+  @Test(timeout = 30000)
+  public void testCatFileBatchHandlerFailure() throws Exception {
+    addFileOnCurrentBranch("large.txt", Strings.repeat("0123456789", 10000));
+    String blobSha = executor.runGitCommand("rev-parse", "HEAD:large.txt").trim();
+    List<String> objects = Collections.nCopies(5000, blobSha);
+    CatFileBatch batch = new CatFileBatch(executor);
+    try {
+      batch.readAll(objects, new CatFileBatch.ObjectHandler() {
+        @Override
+        public void objectRead(String sha, long size, InputStream content) throws IOException {
+          throw new IOException("Handler failure");
+        }
+      });
+      fail("The handler failure should be propagated");
+    } catch (IOException e) {
+      assertEquals("Handler failure", e.getMessage());
+    } finally {
+      batch.close();
+    }
+  }
+
+}
@@ -0,0 +1,110 @@
+package ctalau.github.gitj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Test for the JFR events. It needs a JDK with <code>jdk.jfr</code>, so it
+ * is left out by the <code>no-jfr</code> build profile, like
+ * {@link JfrEvents}.
+ *
+ * @author ctalau
+ */
+public class JfrEventsTest {
+
+  /**
+   * The repository to be used in tests.
+   */
+  private File repoDir;
+
+  /**
+   * Creates a new repository for testing purposes.
+   *
+   * @throws Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    repoDir = Files.createTempDir();
+    GitCommandExecutor executor = new GitCommandExecutor(repoDir);
+    executor.runGitCommand("init");
+    File readmeFile = new File(repoDir, "README.md");
+    Files.write("text", readmeFile, Charsets.UTF_8);
+    executor.runGitCommand("add", readmeFile.getPath());
+    executor.runGitCommand("commit", "-m", "Added: README.md");
+  }
+
+  /**
+   * Delete the scratch dir.
+   * @throws IOException
+   */
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(repoDir);
+  }
+
+  /**
+   * Test the JFR events of the repository operations and of their processes.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testFlightRecorderEvents() throws Exception {
+    GitRepository repository = new GitRepository(repoDir);
+    String sha = repository.getLatestCommitSha("master");
+    File recordingFile = new File(repoDir, "gitj.jfr");
+    Recording recording = new Recording();
+    try {
+      recording.enable("ctalau.github.gitj.Operation").withThreshold(Duration.ZERO);
+      recording.enable("ctalau.github.gitj.Process");
+      recording.start();
+      String newSha = repository.writeFile(sha, "jfr.txt", "jfr", "Recorded");
+      assertEquals("jfr", repository.readFile(newSha, "jfr.txt"));
+      recording.stop();
+      recording.dump(recordingFile.toPath());
+    } finally {
+      recording.close();
+    }
+
+    List<String> operations = Lists.newArrayList();
+    List<String> processes = Lists.newArrayList();
+    for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile.toPath())) {
+      String eventName = event.getEventType().getName();
+      if (eventName.equals("ctalau.github.gitj.Operation")) {
+        operations.add(event.getString("name"));
+        assertTrue(event.getInt("processCount") > 0);
+      } else if (eventName.equals("ctalau.github.gitj.Process")) {
+        processes.add(event.getString("operation") + ":" + event.getString("command"));
+        assertEquals(0, event.getInt("exitCode"));
+        assertTrue(event.getLong("executionTime") > 0);
+        if (event.getString("command").equals("show")) {
+          assertEquals(3, event.getLong("bytesRead"));
+        }
+      }
+    }
+    Collections.sort(operations);
+    assertEquals(ImmutableList.of("readFile", "writeFile"), operations);
+    assertTrue(processes.contains("writeFile:hash-object"));
+    assertTrue(processes.contains("writeFile:commit-tree"));
+    assertTrue(processes.contains("readFile:show"));
+  }
+}
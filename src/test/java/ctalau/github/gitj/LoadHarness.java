@@ -0,0 +1,514 @@
+package ctalau.github.gitj;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Runs a multi-threaded workload against a fixture repository for a fixed
+ * duration and reports the throughput, the latency percentiles of every
+ * operation, the branch move conflicts and the git processes started.
+ *
+ * Every write, delete or move of a file is committed on top of the head of a
+ * random branch and followed by a <code>moveBranch</code>, which fails if
+ * another thread moved the branch in between. At the end, the number of
+ * commits on every branch is checked against the number of successful moves
+ * and the repository is checked with <code>git fsck</code>.
+ *
+ * Run with: <code>java ctalau.github.gitj.LoadHarness [key=value...]</code>,
+ * the keys being the fields of {@link Config}.
+ *
+ * @author ctalau
+ */
+public class LoadHarness {
+  /**
+   * The operations of the workload.
+   */
+  private enum Operation {
+    READ,
+    LIST,
+    WRITE,
+    DELETE,
+    MOVE,
+    MOVE_BRANCH
+  }
+
+  /**
+   * The workload configuration.
+   */
+  static class Config {
+    /**
+     * The number of worker threads.
+     */
+    int threads = 8;
+
+    /**
+     * The duration of the run, in seconds.
+     */
+    int durationSeconds = 30;
+
+    /**
+     * The number of branches.
+     */
+    int branches = 4;
+
+    /**
+     * The number of directories in the fixture.
+     */
+    int dirs = 20;
+
+    /**
+     * The number of files per directory in the fixture.
+     */
+    int filesPerDir = 50;
+
+    /**
+     * The skew of the path distribution: 0 for uniform, higher values
+     * concentrate the operations on fewer paths.
+     */
+    double pathSkew = 1.0;
+
+    /**
+     * The relative weight of the reads.
+     */
+    int readRatio = 60;
+
+    /**
+     * The relative weight of the directory listings.
+     */
+    int listRatio = 20;
+
+    /**
+     * The relative weight of the writes.
+     */
+    int writeRatio = 15;
+
+    /**
+     * The relative weight of the deletions.
+     */
+    int deleteRatio = 3;
+
+    /**
+     * The relative weight of the file moves.
+     */
+    int moveRatio = 2;
+
+    /**
+     * The seed of the random generators.
+     */
+    long seed = 42;
+
+    /**
+     * Parses <code>key=value</code> arguments into the configuration.
+     *
+     * @param args The arguments.
+     *
+     * @return The configuration.
+     *
+     * @throws Exception
+     */
+    static Config parse(String[] args) throws Exception {
+      Config config = new Config();
+      for (String arg : args) {
+        List<String> keyValue = Splitter.on('=').limit(2).splitToList(arg);
+        Field field = Config.class.getDeclaredField(keyValue.get(0));
+        if (field.getType() == int.class) {
+          field.setInt(config, Integer.parseInt(keyValue.get(1)));
+        } else if (field.getType() == long.class) {
+          field.setLong(config, Long.parseLong(keyValue.get(1)));
+        } else {
+          field.setDouble(config, Double.parseDouble(keyValue.get(1)));
+        }
+      }
+      return config;
+    }
+  }
+
+  /**
+   * Collects the latencies of an operation.
+   */
+  private static class LatencyRecorder {
+    /**
+     * The latencies, in microseconds.
+     */
+    private long[] latencies = new long[1024];
+
+    /**
+     * The number of recorded latencies.
+     */
+    private int count;
+
+    /**
+     * The number of failed operations.
+     */
+    private long errors;
+
+    /**
+     * Records a latency.
+     *
+     * @param latencyNanos The latency in nanoseconds.
+     */
+    synchronized void record(long latencyNanos) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+    }
+
+    /**
+     * Records a failed operation.
+     */
+    synchronized void recordError() {
+      errors++;
+    }
+
+    /**
+     * @return The number of successful operations.
+     */
+    synchronized int getCount() {
+      return count;
+    }
+
+    /**
+     * @return The number of failed operations.
+     */
+    synchronized long getErrors() {
+      return errors;
+    }
+
+    /**
+     * Returns a percentile of the latencies.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     *
+     * @return The latency in milliseconds.
+     */
+    synchronized double getPercentileMillis(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * count) - 1;
+      return sorted[Math.max(0, Math.min(index, count - 1))] / 1000.0;
+    }
+  }
+
+  /**
+   * The configuration.
+   */
+  private final Config config;
+
+  /**
+   * The repository under test.
+   */
+  private final GitRepository repository;
+
+  /**
+   * The paths of the files in the fixture.
+   */
+  private final List<String> paths = Lists.newArrayList();
+
+  /**
+   * The latencies of every operation.
+   */
+  private final Map<Operation, LatencyRecorder> recorders =
+      new EnumMap<Operation, LatencyRecorder>(Operation.class);
+
+  /**
+   * The number of successful branch moves, by branch.
+   */
+  private final Map<String, AtomicLong> successfulMoves = Maps.newHashMap();
+
+  /**
+   * The number of branch moves rejected because the branch had moved.
+   */
+  private final AtomicLong conflicts = new AtomicLong();
+
+  /**
+   * The cumulative weights of the operations chosen at random.
+   */
+  private final int[] cumulativeWeights;
+
+  /**
+   * Constructor.
+   *
+   * @param config The configuration.
+   * @param repository The repository under test.
+   */
+  LoadHarness(Config config, GitRepository repository) {
+    this.config = config;
+    this.repository = repository;
+    for (Operation operation : Operation.values()) {
+      recorders.put(operation, new LatencyRecorder());
+    }
+    for (int i = 0; i < config.branches; i++) {
+      successfulMoves.put(getBranch(i), new AtomicLong());
+    }
+    for (int dir = 0; dir < config.dirs; dir++) {
+      for (int file = 0; file < config.filesPerDir; file++) {
+        paths.add("dir" + dir + "/file" + file + ".txt");
+      }
+    }
+    int[] weights = {config.readRatio, config.listRatio, config.writeRatio,
+        config.deleteRatio, config.moveRatio};
+    cumulativeWeights = new int[weights.length];
+    for (int i = 0; i < weights.length; i++) {
+      cumulativeWeights[i] = weights[i] + (i > 0 ? cumulativeWeights[i - 1] : 0);
+    }
+  }
+
+  /**
+   * Returns the name of a branch.
+   *
+   * @param index The index of the branch.
+   *
+   * @return The name of the branch.
+   */
+  private static String getBranch(int index) {
+    return "load-" + index;
+  }
+
+  /**
+   * Creates the fixture: all the files in a single commit, on all the branches.
+   *
+   * @param executor The executor of the fixture repository.
+   *
+   * @return The SHA of the fixture commit.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  String createFixture(GitCommandExecutor executor) throws IOException, InterruptedException {
+    // Build the trees with a single index update.
+    StringBuilder indexInfo = new StringBuilder();
+    String blobSha = executor.pipeIntoGitCommand("initial content\n", "hash-object", "-w", "--stdin").trim();
+    for (String path : paths) {
+      indexInfo.append("100644 ").append(blobSha).append('\t').append(path).append('\n');
+    }
+    executor.pipeIntoGitCommand(indexInfo.toString(), "update-index", "--add", "--index-info");
+    String treeSha = executor.runGitCommand("write-tree").trim();
+    String commitSha = executor.runGitCommand("commit-tree", treeSha, "-m", "Fixture").trim();
+    for (int i = 0; i < config.branches; i++) {
+      executor.runGitCommand("update-ref", "refs/heads/" + getBranch(i), commitSha);
+    }
+    return commitSha;
+  }
+
+  /**
+   * Runs the workload.
+   *
+   * @return The elapsed time in nanoseconds.
+   *
+   * @throws InterruptedException
+   */
+  long run() throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+    List<Thread> workers = Lists.newArrayList();
+    long startTime = System.nanoTime();
+    for (int i = 0; i < config.threads; i++) {
+      final Random random = new Random(config.seed + i);
+      final int workerIndex = i;
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          int iteration = 0;
+          while (System.nanoTime() < deadline) {
+            runOperation(random, "t" + workerIndex + "-" + iteration++);
+          }
+        }
+      }, "load-worker-" + i);
+      worker.start();
+      workers.add(worker);
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return System.nanoTime() - startTime;
+  }
+
+  /**
+   * Runs a random operation and records its latency.
+   *
+   * @param random The random generator of the current thread.
+   * @param tag A tag unique to this operation.
+   */
+  private void runOperation(Random random, String tag) {
+    int draw = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    Operation operation = Operation.values()[0];
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      if (draw < cumulativeWeights[i]) {
+        operation = Operation.values()[i];
+        break;
+      }
+    }
+    String branch = getBranch(random.nextInt(config.branches));
+    String path = pickPath(random);
+
+    LatencyRecorder recorder = recorders.get(operation);
+    try {
+      String headSha = repository.getLatestCommitSha(branch);
+      String newSha = null;
+      long startTime = System.nanoTime();
+      switch (operation) {
+      case READ:
+        repository.readFile(headSha, path);
+        break;
+      case LIST:
+        repository.listFiles(headSha, path.substring(0, path.indexOf('/')));
+        break;
+      case WRITE:
+        newSha = repository.writeFile(headSha, path, "content " + tag + "\n", "Write " + tag);
+        break;
+      case DELETE:
+        newSha = repository.deleteFile(headSha, path, "Delete " + tag);
+        break;
+      case MOVE:
+        // Rename the file in its directory.
+        String newPath = path.substring(0, path.lastIndexOf('/') + 1) + "moved-" + tag + ".txt";
+        newSha = repository.move(headSha, path, newPath, "Move " + tag);
+        break;
+      default:
+        throw new IllegalStateException(operation.toString());
+      }
+      recorder.record(System.nanoTime() - startTime);
+
+      if (newSha != null && !newSha.equals(headSha)) {
+        startTime = System.nanoTime();
+        boolean moved = repository.moveBranch(branch, newSha);
+        recorders.get(Operation.MOVE_BRANCH).record(System.nanoTime() - startTime);
+        if (moved) {
+          successfulMoves.get(branch).incrementAndGet();
+        } else {
+          conflicts.incrementAndGet();
+        }
+      }
+    } catch (IOException e) {
+      // Operations on the files deleted or moved by other threads end up here too.
+      recorder.recordError();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Picks a path, following the configured skew.
+   *
+   * @param random The random generator.
+   *
+   * @return The path.
+   */
+  private String pickPath(Random random) {
+    // Power-law distribution over the paths, uniform for a skew of 0.
+    double sample = Math.pow(random.nextDouble(), 1 + config.pathSkew);
+    return paths.get((int) (sample * paths.size()));
+  }
+
+  /**
+   * Prints the results of the run.
+   *
+   * @param elapsedNanos The duration of the run.
+   */
+  void report(long elapsedNanos) {
+    double elapsedSeconds = elapsedNanos / 1e9;
+    long totalOps = 0;
+    System.out.println(String.format("%-12s %9s %9s %8s %9s %9s %9s",
+        "operation", "count", "ops/s", "errors", "p50 ms", "p99 ms", "p999 ms"));
+    for (Map.Entry<Operation, LatencyRecorder> entry : recorders.entrySet()) {
+      LatencyRecorder recorder = entry.getValue();
+      if (entry.getKey() != Operation.MOVE_BRANCH) {
+        totalOps += recorder.getCount();
+      }
+      System.out.println(String.format("%-12s %9d %9.1f %8d %9.2f %9.2f %9.2f",
+          entry.getKey(), recorder.getCount(), recorder.getCount() / elapsedSeconds,
+          recorder.getErrors(), recorder.getPercentileMillis(50),
+          recorder.getPercentileMillis(99), recorder.getPercentileMillis(99.9)));
+    }
+    System.out.println(String.format("Throughput: %.1f ops/s over %.1f s", totalOps / elapsedSeconds,
+        elapsedSeconds));
+
+    long attempts = recorders.get(Operation.MOVE_BRANCH).getCount();
+    System.out.println(String.format("moveBranch conflicts: %d of %d (%.2f%%)", conflicts.get(),
+        attempts, attempts == 0 ? 0 : 100.0 * conflicts.get() / attempts));
+
+    long processes = 0;
+    for (Map.Entry<String, Long> count : repository.getProcessCounts().entrySet()) {
+      processes += count.getValue();
+      System.out.println(String.format("  git %-14s %9d", count.getKey(), count.getValue()));
+    }
+    System.out.println(String.format("Git processes: %d (%.2f per operation)", processes,
+        totalOps == 0 ? 0 : (double) processes / totalOps));
+  }
+
+  /**
+   * Checks that the branches contain exactly the commits of the successful
+   * moves and that the repository is not corrupt.
+   *
+   * @param executor The executor of the repository.
+   * @param fixtureSha The SHA of the fixture commit.
+   *
+   * @return <code>true</code> if the repository is consistent.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  boolean checkConsistency(GitCommandExecutor executor, String fixtureSha)
+      throws IOException, InterruptedException {
+    boolean consistent = true;
+    for (Map.Entry<String, AtomicLong> entry : successfulMoves.entrySet()) {
+      long commits = Long.parseLong(executor.runGitCommand(
+          "rev-list", "--count", fixtureSha + ".." + entry.getKey()).trim());
+      if (commits != entry.getValue().get()) {
+        System.out.println(String.format("Branch %s has %d commits, but %d moves succeeded",
+            entry.getKey(), commits, entry.getValue().get()));
+        consistent = false;
+      }
+    }
+    try {
+      executor.runGitCommand("fsck", "--no-dangling");
+    } catch (IOException e) {
+      System.out.println("git fsck failed: " + e.getMessage());
+      consistent = false;
+    }
+    System.out.println("Consistency checks: " + (consistent ? "passed" : "FAILED"));
+    return consistent;
+  }
+
+  /**
+   * Entry point.
+   *
+   * @param args The configuration, as <code>key=value</code> pairs.
+   *
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    Config config = Config.parse(args);
+    File repoDir = Files.createTempDir();
+    boolean consistent;
+    try {
+      GitCommandExecutor executor = new GitCommandExecutor(repoDir);
+      executor.runGitCommand("init");
+      LoadHarness harness = new LoadHarness(config, new GitRepository(repoDir));
+      String fixtureSha = harness.createFixture(executor);
+      harness.report(harness.run());
+      consistent = harness.checkConsistency(executor, fixtureSha);
+    } finally {
+      FileUtils.deleteDirectory(repoDir);
+    }
+    System.exit(consistent ? 0 : 1);
+  }
+}
@@ -0,0 +1,107 @@
+package ctalau.github.gitj;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+/**
+ * Compares the cost of full file reads with the one of size queries and
+ * range reads, on a large file.
+ *
+ * Run with: <code>java ctalau.github.gitj.ReadRangeBenchmark [sizeInMB] [iterations]</code>
+ *
+ * @author ctalau
+ */
+public class ReadRangeBenchmark {
+  /**
+   * The path of the large file.
+   */
+  private static final String PATH = "large.txt";
+
+  /**
+   * An operation to measure.
+   */
+  private interface Operation {
+    /**
+     * Runs the operation once.
+     *
+     * @throws Exception
+     */
+    void run() throws Exception;
+  }
+
+  /**
+   * Entry point.
+   *
+   * @param args The size of the file in MB and the number of iterations.
+   *
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    File repoDir = Files.createTempDir();
+    try {
+      GitCommandExecutor executor = new GitCommandExecutor(repoDir);
+      executor.runGitCommand("init");
+      executor.runGitCommand("commit", "--allow-empty", "-m", "Initial");
+      final GitRepository repository = new GitRepository(repoDir);
+      String content = Strings.repeat("0123456789abcdef", sizeMb * 1024 * 64);
+      final String sha = repository.writeFile(
+          repository.getLatestCommitSha("master"), PATH, content, "Large file");
+      final long middle = content.length() / 2;
+
+      measure("readFile", iterations, new Operation() {
+        @Override
+        public void run() throws Exception {
+          repository.readFile(sha, PATH);
+        }
+      });
+      measure("size", iterations, new Operation() {
+        @Override
+        public void run() throws Exception {
+          repository.size(sha, PATH);
+        }
+      });
+      measure("readRange(0, 4KB)", iterations, new Operation() {
+        @Override
+        public void run() throws Exception {
+          repository.readRange(sha, PATH, 0, 4 * 1024);
+        }
+      });
+      measure("readRange(middle, 64KB)", iterations, new Operation() {
+        @Override
+        public void run() throws Exception {
+          repository.readRange(sha, PATH, middle, 64 * 1024);
+        }
+      });
+    } finally {
+      FileUtils.deleteDirectory(repoDir);
+    }
+  }
+
+  /**
+   * Measures an operation and prints its average duration.
+   *
+   * @param name The name of the operation.
+   * @param iterations The number of measured runs.
+   * @param operation The operation.
+   *
+   * @throws Exception
+   */
+  private static void measure(String name, int iterations, Operation operation) throws Exception {
+    // Warm up.
+    operation.run();
+    long startTime = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      operation.run();
+    }
+    long elapsedMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime);
+    System.out.println(String.format("%-25s %10.2f ms/op", name, elapsedMicros / 1000.0 / iterations));
+  }
+}